@@ -0,0 +1,334 @@
+package edu.cg.bench;
+
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import edu.cg.CarvingOptions;
+import edu.cg.FunctioalForEachLoops;
+import edu.cg.ImagePipeline;
+import edu.cg.ImageProcessor;
+import edu.cg.ImageProcessor.ResamplingFilter;
+import edu.cg.Logger;
+import edu.cg.Mask;
+import edu.cg.PixelBuffer;
+import edu.cg.PointOperation;
+import edu.cg.RGBWeights;
+import edu.cg.RowKernel;
+import edu.cg.SeamsCarver;
+import edu.cg.SeamsCarver.Orientation;
+
+/*
+ * A self-contained micro benchmark harness for ImageProcessor and SeamsCarver.
+ * Every benchmark runs over synthetic, deterministic images for each combination of
+ * resolution, image type and (for seam carving) seam count, and reports the average
+ * time per operation, the pixel throughput and the allocation rate over all threads.
+ *
+ * Usage: ImageBenchmarks [--bench name,...] [--mp 0.3,2,12,24] [--types INT_RGB,3BYTE_BGR]
+ *                        [--seams 1,10,50] [--shrink 20] [--warmup n] [--iterations n]
+ *
+ * The *Kernel benchmarks run the hue / greyscale row kernels alone over the packed pixels;
+ * the plain ones use the Vector API kernels when the JVM runs with
+ * --add-modules jdk.incubator.vector (and vector/ is on the class path). hueLookup and
+ * greyscaleMatrix run the same operations compiled to PointOperation tables, and
+ * hueThenGreyscale(Fused) chains the two as two passes and as one fused PointOperation.
+ * pipelineEager / pipelineLazy run greyscale, a bilinear 3/4 downscale and hue one by one
+ * and as an ImagePipeline.
+ *
+ * seamsResize2D and seamsResizeTwoCarvers shrink both dimensions by --shrink percent,
+ * with one 2D SeamsCarver and with a vertical carver followed by a horizontal one.
+ */
+public class ImageBenchmarks {
+	private static final Logger QUIET = s -> {};
+	private static final RGBWeights WEIGHTS = new RGBWeights(30, 59, 11);
+	private static final String[] ALL_BENCHMARKS = { "changeHue", "greyscale", "hueThenGreyscale",
+			"hueThenGreyscaleFused", "pipelineEager", "pipelineLazy", "nearestNeighbor", "bilinear", "bicubic",
+			"hueKernel", "hueKernelScalar", "hueLookup", "greyscaleKernel", "greyscaleKernelScalar", "greyscaleMatrix",
+			"seamsCarverInit", "seamsCarverResize", "seamsResize2D", "seamsResizeTwoCarvers", "forEachBoxed",
+			"forEachPrimitive" };
+	private static final PointOperation HUE_THEN_GREYSCALE = PointOperation.changeHue(WEIGHTS)
+			.andThen(PointOperation.greyscale(WEIGHTS));
+
+	// MARK: An inner interface for functional programming.
+	@FunctionalInterface
+	interface Benchmark {
+		Object run();
+	}
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	// MARK: fields
+	private List<String> benchmarks = Arrays.asList(ALL_BENCHMARKS);
+	private double[] megapixels = { 0.3, 2, 12, 24 };
+	private int[] types = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR };
+	private int[] seams = { 1, 10, 50 };
+	private int shrink = 20;
+	private int warmup = 3;
+	private int iterations = 5;
+	private volatile Object sink;
+
+	public static void main(String[] args) {
+		new ImageBenchmarks(args).runAll();
+	}
+
+	private ImageBenchmarks(String[] args) {
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "--bench":
+				benchmarks = Arrays.asList(value.split(","));
+				break;
+			case "--mp":
+				megapixels = Arrays.stream(value.split(",")).mapToDouble(Double::parseDouble).toArray();
+				break;
+			case "--types":
+				types = Arrays.stream(value.split(",")).mapToInt(ImageBenchmarks::parseType).toArray();
+				break;
+			case "--seams":
+				seams = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+				break;
+			case "--shrink":
+				shrink = Integer.parseInt(value);
+				break;
+			case "--warmup":
+				warmup = Integer.parseInt(value);
+				break;
+			case "--iterations":
+				iterations = Integer.parseInt(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown argument: " + args[i]);
+			}
+		}
+	}
+
+	private void runAll() {
+		System.out.println("Row kernels: " + ImageProcessor.kernelLanes() + " int lanes");
+		System.out.println(String.format(Locale.ROOT, "%-22s %-10s %6s %6s %12s %10s %12s", "benchmark", "type",
+				"MP", "seams", "ms/op", "MP/s", "MB/s alloc"));
+
+		for (String name : benchmarks) {
+			for (double mp : megapixels) {
+				for (int type : types) {
+					BufferedImage img = syntheticImage(mp, type);
+					long pixels = (long) img.getWidth() * img.getHeight();
+					if (name.startsWith("seamsCarver")) {
+						for (int n : seams)
+							measure(name, img, n, pixels, seamsBenchmark(name, img, n));
+					} else if (name.startsWith("seamsResize")) {
+						measure(name, img, 0, pixels, resizeBenchmark(name, img, shrink));
+					} else {
+						measure(name, img, 0, pixels, imageBenchmark(name, img));
+					}
+				}
+			}
+		}
+	}
+
+	// MARK: Benchmarks
+	private static Benchmark imageBenchmark(String name, BufferedImage img) {
+		int width = img.getWidth();
+		int height = img.getHeight();
+		switch (name) {
+		case "changeHue":
+			return () -> new ImageProcessor(QUIET, img, WEIGHTS).changeHue();
+		case "greyscale":
+			return () -> new ImageProcessor(QUIET, img, WEIGHTS).greyscale();
+		case "hueThenGreyscale":
+			return () -> new ImageProcessor(QUIET, new ImageProcessor(QUIET, img, WEIGHTS).changeHue(), WEIGHTS)
+					.greyscale();
+		case "hueThenGreyscaleFused":
+			return () -> new ImageProcessor(QUIET, img, WEIGHTS).apply(HUE_THEN_GREYSCALE);
+		case "pipelineEager":
+			return () -> {
+				BufferedImage grey = new ImageProcessor(QUIET, img, WEIGHTS).greyscale();
+				BufferedImage small = new ImageProcessor(QUIET, grey, WEIGHTS, width * 3 / 4, height * 3 / 4).bilinear();
+				return new ImageProcessor(QUIET, small, WEIGHTS).changeHue();
+			};
+		case "pipelineLazy":
+			return () -> new ImagePipeline(QUIET, img, WEIGHTS).greyscale()
+					.resample(ResamplingFilter.BILINEAR, width * 3 / 4, height * 3 / 4).changeHue().render();
+		case "nearestNeighbor":
+			return () -> new ImageProcessor(QUIET, img, WEIGHTS, width * 3 / 4, height * 3 / 4).nearestNeighbor();
+		case "bilinear":
+			return () -> new ImageProcessor(QUIET, img, WEIGHTS, width * 3 / 4, height * 3 / 4).bilinear();
+		case "bicubic":
+			return () -> new ImageProcessor(QUIET, img, WEIGHTS, width * 3 / 4, height * 3 / 4).bicubic();
+		case "hueKernel":
+			return kernelBenchmark(img, (row, from, to) -> ImageProcessor.changeHue(row, from, to, WEIGHTS));
+		case "hueKernelScalar":
+			return kernelBenchmark(img, (row, from, to) -> ImageProcessor.changeHueScalar(row, from, to, WEIGHTS));
+		case "hueLookup":
+			return kernelBenchmark(img, PointOperation.changeHue(WEIGHTS));
+		case "greyscaleKernel":
+			return kernelBenchmark(img, (row, from, to) -> ImageProcessor.greyscale(row, from, to, WEIGHTS));
+		case "greyscaleKernelScalar":
+			return kernelBenchmark(img, (row, from, to) -> ImageProcessor.greyscaleScalar(row, from, to, WEIGHTS));
+		case "greyscaleMatrix":
+			return kernelBenchmark(img, PointOperation.greyscale(WEIGHTS));
+		case "forEachBoxed":
+			return boxedLoopBenchmark(img);
+		case "forEachPrimitive":
+			return loopBenchmark(img, (loops, sum) -> loops.forEach((y, x) -> sum[y & 7] += x));
+		default:
+			throw new IllegalArgumentException("Unknown benchmark: " + name);
+		}
+	}
+
+	private static Benchmark seamsBenchmark(String name, BufferedImage img, int numOfSeams) {
+		Supplier<SeamsCarver> carver = () -> new SeamsCarver(QUIET, img, img.getWidth() - numOfSeams, WEIGHTS,
+				new Mask(img.getWidth(), img.getHeight()));
+		switch (name) {
+		case "seamsCarverInit":
+			return carver::get;
+		case "seamsCarverResize":
+			return () -> carver.get().resize();
+		default:
+			throw new IllegalArgumentException("Unknown benchmark: " + name);
+		}
+	}
+
+	private static Benchmark resizeBenchmark(String name, BufferedImage img, int shrink) {
+		int outWidth = img.getWidth() * (100 - shrink) / 100;
+		int outHeight = img.getHeight() * (100 - shrink) / 100;
+		Mask mask = new Mask(img.getWidth(), img.getHeight());
+		switch (name) {
+		case "seamsResize2D":
+			return () -> SeamsCarver.resize(QUIET, img, outWidth, outHeight, WEIGHTS, mask);
+		case "seamsResizeTwoCarvers":
+			return () -> {
+				SeamsCarver vertical = new SeamsCarver(QUIET, img, outWidth, WEIGHTS, mask);
+				return new SeamsCarver(QUIET, vertical.resize(), Orientation.HORIZONTAL, outHeight, WEIGHTS,
+						vertical.getMaskAfterSeamCarving(), CarvingOptions.DEFAULT).resize();
+			};
+		default:
+			throw new IllegalArgumentException("Unknown benchmark: " + name);
+		}
+	}
+
+	// Runs kernel over a copy of the packed pixels, one image row at a time.
+	private static Benchmark kernelBenchmark(BufferedImage img, RowKernel kernel) {
+		int width = img.getWidth();
+		int[] pixels = img.getRGB(0, 0, width, img.getHeight(), null, 0, width);
+		int[] work = new int[pixels.length];
+		return () -> {
+			System.arraycopy(pixels, 0, work, 0, pixels.length);
+			for (int from = 0; from < work.length; from += width)
+				kernel.apply(work, from, from + width);
+			return work;
+		};
+	}
+
+	@FunctionalInterface
+	interface LoopBody {
+		void run(FunctioalForEachLoops loops, long[] sum);
+	}
+
+	private static Benchmark loopBenchmark(BufferedImage img, LoopBody body) {
+		FunctioalForEachLoops loops = new FunctioalForEachLoops() {
+		};
+		loops.setForEachParameters(img.getWidth(), img.getHeight());
+		return () -> {
+			long[] sum = new long[8];
+			body.run(loops, sum);
+			return sum;
+		};
+	}
+
+	// The original boxed loops of FunctioalForEachLoops, for comparison with its primitive ones.
+	private static Benchmark boxedLoopBenchmark(BufferedImage img) {
+		int width = img.getWidth();
+		int height = img.getHeight();
+		return () -> {
+			long[] sum = new long[8];
+			forEachBoxed(height, y -> forEachBoxed(width, x -> sum[y & 7] += x));
+			return sum;
+		};
+	}
+
+	private static void forEachBoxed(int count, Consumer<Integer> action) {
+		for (int i = 0; i < count; ++i)
+			action.accept(i);
+	}
+
+	// MARK: Measurement
+	private void measure(String name, BufferedImage img, int numOfSeams, long pixels, Benchmark benchmark) {
+		for (int i = 0; i < warmup; ++i)
+			sink = benchmark.run();
+
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; ++i)
+			sink = benchmark.run();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		allocated = allocatedBytes() - allocated;
+
+		System.out.println(String.format(Locale.ROOT, "%-22s %-10s %6.1f %6s %12.2f %10.1f %12.1f", name,
+				typeName(img.getType()), pixels / 1e6, numOfSeams == 0 ? "-" : numOfSeams,
+				seconds * 1e3 / iterations, pixels * iterations / 1e6 / seconds, allocated / 1e6 / seconds));
+	}
+
+	// the bytes allocated so far by all live threads, including the pools used by the parallel loops.
+	private static long allocatedBytes() {
+		return Arrays.stream(THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())).filter(b -> b > 0).sum();
+	}
+
+	// MARK: Inputs
+	// A deterministic 4:3 test image of about mp megapixels, with smooth and noisy regions.
+	static BufferedImage syntheticImage(double mp, int type) {
+		int width = (int) Math.round(Math.sqrt(mp * 1e6 * 4 / 3));
+		int height = (int) Math.round(mp * 1e6 / width);
+		BufferedImage img = new BufferedImage(width, height, type);
+		PixelBuffer buffer = new PixelBuffer(img);
+		int[] row = buffer.newRow();
+		int seed = 0x2545F491;
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				seed ^= seed << 13;
+				seed ^= seed >>> 17;
+				seed ^= seed << 5;
+				int r = (x * 255 / width + (seed & 0x1F)) & 0xFF;
+				int g = (y * 255 / height + ((seed >> 8) & 0x1F)) & 0xFF;
+				int b = ((x ^ y) + ((seed >> 16) & 0x1F)) & 0xFF;
+				row[x] = 0xFF000000 | r << 16 | g << 8 | b;
+			}
+			buffer.putRow(y, row);
+		}
+		return img;
+	}
+
+	private static int parseType(String name) {
+		switch (name) {
+		case "INT_RGB":
+			return BufferedImage.TYPE_INT_RGB;
+		case "INT_ARGB":
+			return BufferedImage.TYPE_INT_ARGB;
+		case "3BYTE_BGR":
+			return BufferedImage.TYPE_3BYTE_BGR;
+		case "4BYTE_ABGR":
+			return BufferedImage.TYPE_4BYTE_ABGR;
+		default:
+			throw new IllegalArgumentException("Unsupported image type: " + name);
+		}
+	}
+
+	private static String typeName(int type) {
+		switch (type) {
+		case BufferedImage.TYPE_INT_RGB:
+			return "INT_RGB";
+		case BufferedImage.TYPE_INT_ARGB:
+			return "INT_ARGB";
+		case BufferedImage.TYPE_3BYTE_BGR:
+			return "3BYTE_BGR";
+		case BufferedImage.TYPE_4BYTE_ABGR:
+			return "4BYTE_ABGR";
+		default:
+			return String.valueOf(type);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package edu.cg.bench;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import edu.cg.CarvingOptions;
+import edu.cg.Mask;
+import edu.cg.RGBWeights;
+import edu.cg.SeamsCarver;
+
+/*
+ * Regression checks for SeamsCarver on small images, at the edges of what its size
+ * checks accept. Every check carves a random image, and the output must have the
+ * requested size and keep the surviving pixels of every row (or column) in order.
+ * Run with assertions enabled, so the carver's own debug checks run too:
+ *
+ * java -ea -cp <classes> edu.cg.bench.SeamsCarverChecks
+ *
+ * The failures are printed, and the exit status is 1 if there were any.
+ */
+public class SeamsCarverChecks {
+	private static final RGBWeights WEIGHTS = new RGBWeights(1, 1, 1);
+
+	// MARK: fields
+	private int checks;
+	private int failures;
+
+	public static void main(String[] args) {
+		boolean assertions = false;
+		assert assertions = true;
+		if (!assertions)
+			System.err.println("Warning: assertions are disabled; run with -ea for the carver's debug checks");
+
+		SeamsCarverChecks checks = new SeamsCarverChecks();
+		checks.runAll();
+		System.out.println(checks.checks + " checks, " + checks.failures + " failed");
+		System.exit(checks.failures == 0 ? 0 : 1);
+	}
+
+	private void runAll() {
+		// carving down to a single column or row, and 2-pixel sides
+		int[][] narrow = { { 2, 5, 1, 5 }, { 6, 2, 6, 1 }, { 5, 2, 4, 1 }, { 2, 4, 1, 3 }, { 2, 2, 1, 1 },
+				{ 2, 2, 2, 1 }, { 2, 2, 1, 2 }, { 3, 2, 2, 1 }, { 2, 3, 1, 2 }, { 2, 7, 2, 4 }, { 7, 2, 4, 2 } };
+		for (int[] size : narrow)
+			check("narrow", size[0], size[1], size[2], size[3], CarvingOptions.DEFAULT);
+
+		// pyramid levels whose coarse level is too small for its share of the seams
+		check("pyramid", 400, 300, 300, 300, CarvingOptions.DEFAULT.withPyramidLevels(8));
+		Random random = new Random(14);
+		for (int i = 0; i < 180; i++) {
+			int width = 2 + random.nextInt(60);
+			int height = 2 + random.nextInt(60);
+			check("pyramid", width, height, width - random.nextInt(width / 2 + 1),
+					height - random.nextInt(height / 2 + 1),
+					CarvingOptions.DEFAULT.withPyramidLevels(1 + random.nextInt(8)));
+		}
+
+		// several seams per pass, refreshed incrementally or fully
+		for (int i = 0; i < 120; i++) {
+			int width = 2 + random.nextInt(60);
+			int height = 2 + random.nextInt(60);
+			check("passes", width, height, width - random.nextInt(width / 2 + 1),
+					height - random.nextInt(height / 2 + 1),
+					CarvingOptions.DEFAULT.withSeamsPerPass(2 + random.nextInt(16))
+							.withIncrementalEnergy(random.nextBoolean()).withIncrementalCost(random.nextBoolean()));
+		}
+	}
+
+	private void check(String name, int width, int height, int outWidth, int outHeight, CarvingOptions options) {
+		checks++;
+		String title = name + " " + width + "x" + height + " -> " + outWidth + "x" + outHeight;
+		BufferedImage img = randomImage(width, height, checks);
+		try {
+			BufferedImage out = new SeamsCarver(s -> {}, img, outWidth, outHeight, WEIGHTS, new Mask(width, height),
+					options).resize();
+			if (out.getWidth() != outWidth | out.getHeight() != outHeight)
+				fail(title, "the output is " + out.getWidth() + "x" + out.getHeight());
+			else if ((outWidth == width | outHeight == height) && !keepsPixelOrder(img, out))
+				fail(title, "the surviving pixels are out of order");
+		} catch (RuntimeException | AssertionError e) {
+			fail(title, e.toString());
+		}
+	}
+
+	private void fail(String title, String reason) {
+		failures++;
+		System.out.println("FAILED " + title + ": " + reason);
+	}
+
+	/*
+	 * Whether every output row is a subsequence of the input row, for a carve of the
+	 * width alone, or every output column of the input column, for a carve of the height.
+	 */
+	private static boolean keepsPixelOrder(BufferedImage in, BufferedImage out) {
+		boolean vertical = out.getHeight() == in.getHeight();
+		int lines = vertical ? in.getHeight() : in.getWidth();
+		int inLength = vertical ? in.getWidth() : in.getHeight();
+		int outLength = vertical ? out.getWidth() : out.getHeight();
+		for (int line = 0; line < lines; line++) {
+			int kept = 0;
+			for (int i = 0; i < inLength && kept < outLength; i++) {
+				int pixel = vertical ? in.getRGB(i, line) : in.getRGB(line, i);
+				if (pixel == (vertical ? out.getRGB(kept, line) : out.getRGB(line, kept)))
+					kept++;
+			}
+			if (kept < outLength)
+				return false;
+		}
+		return true;
+	}
+
+	private static BufferedImage randomImage(int width, int height, long seed) {
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(seed);
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				img.setRGB(x, y, random.nextInt());
+		return img;
+	}
+}
@@ -0,0 +1,120 @@
+package edu.cg;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A logger that never blocks its callers: log() stamps the message and publishes it in
+ * a bounded lock-free ring buffer, and the messages are handed to the sink in batches,
+ * on the drain executor (the event thread, for LogField). A single drain is scheduled
+ * at a time, so a burst of messages costs one task.
+ *
+ * The ring is a multi-producer, single-consumer queue: a producer claims a slot by
+ * advancing tail with a CAS and publishes it by writing the slot's sequence number; the
+ * drain reads slots in order while their sequence says they are published. When the
+ * ring is full, messages are dropped and counted rather than waited for.
+ */
+public class AsyncLogger implements Logger {
+	public static final int DEFAULT_CAPACITY = 1 << 12;
+
+	// MARK: An inner interface for functional programming.
+	@FunctionalInterface
+	public interface BatchSink {
+		// times[i] (System.currentTimeMillis) and messages[i], for i < count; dropped since the last batch.
+		void accept(long[] times, String[] messages, int count, long dropped);
+	}
+
+	// MARK: fields
+	private final int mask;
+	private final String[] messages;
+	private final long[] times;
+	// slot i holds message number n when sequences[i] == n + 1, and is free for n when it is n
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicBoolean drainScheduled = new AtomicBoolean();
+	private final Executor drainExecutor;
+	private final BatchSink sink;
+	// the next message to drain; only the drain touches it
+	private long head;
+
+	public AsyncLogger(Executor drainExecutor, BatchSink sink) {
+		this(DEFAULT_CAPACITY, drainExecutor, sink);
+	}
+
+	public AsyncLogger(int capacity, Executor drainExecutor, BatchSink sink) {
+		if (capacity < 2 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("The capacity must be a power of two");
+
+		mask = capacity - 1;
+		messages = new String[capacity];
+		times = new long[capacity];
+		sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; ++i)
+			sequences.set(i, i);
+		this.drainExecutor = drainExecutor;
+		this.sink = sink;
+	}
+
+	@Override
+	public void log(String s) {
+		long time = System.currentTimeMillis();
+		long position = tail.get();
+		int slot;
+		while (true) {
+			slot = (int) (position & mask);
+			long lag = sequences.get(slot) - position;
+			if (lag == 0) {
+				if (tail.compareAndSet(position, position + 1))
+					break;
+				position = tail.get();
+			} else if (lag < 0) {
+				// the slot still holds the message of the previous lap: the ring is full
+				dropped.incrementAndGet();
+				scheduleDrain();
+				return;
+			} else {
+				position = tail.get();
+			}
+		}
+
+		messages[slot] = s == null ? "null" : s;
+		times[slot] = time;
+		sequences.set(slot, position + 1);
+		scheduleDrain();
+	}
+
+	private void scheduleDrain() {
+		if (drainScheduled.compareAndSet(false, true))
+			drainExecutor.execute(this::drain);
+	}
+
+	// Hands every published message to the sink; runs on the drain executor only.
+	private void drain() {
+		// cleared first, so a message published from now on schedules another drain.
+		drainScheduled.set(false);
+		int capacity = mask + 1;
+		// messages claimed after this point are left to the drain their producer schedules
+		int size = (int) Math.min(capacity, tail.get() - head);
+		long[] batchTimes = new long[size];
+		String[] batchMessages = new String[size];
+		int count = 0;
+		while (count < size) {
+			int slot = (int) (head & mask);
+			if (sequences.get(slot) != head + 1)
+				break;
+
+			batchTimes[count] = times[slot];
+			batchMessages[count++] = messages[slot];
+			messages[slot] = null;
+			sequences.set(slot, head + capacity);
+			head++;
+		}
+
+		long lost = dropped.getAndSet(0);
+		if (count > 0 | lost > 0)
+			sink.accept(batchTimes, batchMessages, count, lost);
+	}
+}
@@ -0,0 +1,190 @@
+package edu.cg;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Vector;
+
+/*
+ * A TYPE_INT_RGB image handed to an ImageWriter as tiles of bandHeight full rows, each
+ * rendered by the BandSource only when the writer asks for it. Only the last band asked
+ * for is kept; writers read the bands in order (or, for BMP, in reverse order), so
+ * every band is normally rendered once and memory is a single band.
+ */
+class BandedImage implements RenderedImage {
+	// MARK: An inner interface for functional programming.
+	@FunctionalInterface
+	interface BandSource {
+		// Rows [fromY, fromY + rows) of the image, as a width x rows image.
+		BufferedImage render(int fromY, int rows) throws IOException;
+	}
+
+	// MARK: fields
+	private final int width;
+	private final int height;
+	private final int bandHeight;
+	private final BandSource source;
+	private final ColorModel colorModel;
+	private final SampleModel sampleModel;
+	private int cachedBand = -1;
+	private Raster cachedRaster;
+	private int bandsRendered;
+
+	BandedImage(int width, int height, int bandHeight, BandSource source) {
+		this.width = width;
+		this.height = height;
+		this.bandHeight = bandHeight;
+		this.source = source;
+		BufferedImage prototype = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+		colorModel = prototype.getColorModel();
+		sampleModel = prototype.getSampleModel().createCompatibleSampleModel(width, bandHeight);
+	}
+
+	// The number of bands rendered so far, counting the ones rendered again.
+	synchronized int bandsRendered() {
+		return bandsRendered;
+	}
+
+	private synchronized Raster band(int index) {
+		if (index != cachedBand) {
+			int fromY = index * bandHeight;
+			int rows = Math.min(bandHeight, height - fromY);
+			BufferedImage rendered;
+			try {
+				rendered = source.render(fromY, rows);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Can not render rows " + fromY + " to " + (fromY + rows), e);
+			}
+
+			cachedBand = index;
+			cachedRaster = rendered.getRaster().createTranslatedChild(0, fromY);
+			bandsRendered++;
+		}
+		return cachedRaster;
+	}
+
+	// MARK: RenderedImage
+	@Override
+	public Raster getTile(int tileX, int tileY) {
+		return band(tileY);
+	}
+
+	@Override
+	public Raster getData() {
+		return getData(new Rectangle(0, 0, width, height));
+	}
+
+	@Override
+	public Raster getData(Rectangle rect) {
+		int firstBand = rect.y / bandHeight;
+		int lastBand = (rect.y + rect.height - 1) / bandHeight;
+		if (firstBand == lastBand)
+			return band(firstBand).createChild(rect.x, rect.y, rect.width, rect.height, rect.x, rect.y, null);
+
+		return copyData(Raster.createWritableRaster(
+				sampleModel.createCompatibleSampleModel(rect.width, rect.height), new Point(rect.x, rect.y)));
+	}
+
+	@Override
+	public WritableRaster copyData(WritableRaster raster) {
+		Rectangle bounds = raster == null ? new Rectangle(0, 0, width, height) : raster.getBounds();
+		if (raster == null)
+			raster = Raster.createWritableRaster(sampleModel.createCompatibleSampleModel(width, height), null);
+
+		for (int band = bounds.y / bandHeight; band * bandHeight < bounds.y + bounds.height; ++band)
+			raster.setRect(band(band));
+		return raster;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public int getMinX() {
+		return 0;
+	}
+
+	@Override
+	public int getMinY() {
+		return 0;
+	}
+
+	@Override
+	public int getNumXTiles() {
+		return 1;
+	}
+
+	@Override
+	public int getNumYTiles() {
+		return (height + bandHeight - 1) / bandHeight;
+	}
+
+	@Override
+	public int getMinTileX() {
+		return 0;
+	}
+
+	@Override
+	public int getMinTileY() {
+		return 0;
+	}
+
+	@Override
+	public int getTileWidth() {
+		return width;
+	}
+
+	@Override
+	public int getTileHeight() {
+		return bandHeight;
+	}
+
+	@Override
+	public int getTileGridXOffset() {
+		return 0;
+	}
+
+	@Override
+	public int getTileGridYOffset() {
+		return 0;
+	}
+
+	@Override
+	public ColorModel getColorModel() {
+		return colorModel;
+	}
+
+	@Override
+	public SampleModel getSampleModel() {
+		return sampleModel;
+	}
+
+	@Override
+	public Vector<RenderedImage> getSources() {
+		return null;
+	}
+
+	@Override
+	public Object getProperty(String name) {
+		return java.awt.Image.UndefinedProperty;
+	}
+
+	@Override
+	public String[] getPropertyNames() {
+		return null;
+	}
+}
@@ -0,0 +1,441 @@
+package edu.cg;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+/*
+ * A headless command line front end: applies a chain of operations to every image
+ * matched by a directory or a glob, on a bounded pool of workers, and writes every
+ * result as soon as it is ready. A result keeps its input's path under the directory,
+ * or under the literal prefix of the glob ("photos/" for "photos/**.jpg").
+ */
+public class BatchProcessor {
+	private static final String USAGE = String.join(System.lineSeparator(),
+			"Usage: Main --input <dir|glob> --output <dir> --ops <op,op,...> [options]",
+			"  ops:                hue | greyscale | nearest | bilinear | bicubic | seams",
+			"                      the ops run lazily: point ops are fused with each other and with the resizes",
+			"  --width <n|n%>      target width of the resizing ops (default: unchanged)",
+			"  --height <n|n%>     target height of the resizing ops (default: unchanged)",
+			"  --weights <r,g,b>   RGB weights, each between 0 and 100 (default: 1,1,1)",
+			"  --threads <n>       number of images processed concurrently (default: #cores)",
+			"  --stream            stream hue / greyscale chains band by band, holding a single band for PNG,",
+			"                      BMP and TIFF files; the JPEG writer still asks for the whole image",
+			"  --band <rows>       rows per streamed band (default: " + StreamingProcessor.DEFAULT_BAND_HEIGHT
+					+ ")",
+			"                      PNG and JPEG inputs decode the rows above every band again; use tall bands",
+			"  --tiled             run hue / greyscale / nearest chains on memory-mapped tiles, for images",
+			"                      larger than the heap",
+			"  --verbose           print the operations' own log messages",
+			"  -Dcg.metrics=summary (a JVM option) prints the time of every phase after each image");
+
+	// MARK: An inner interface for functional programming.
+	@FunctionalInterface
+	interface Operation {
+		ImagePipeline append(ImagePipeline pipeline);
+	}
+
+	@FunctionalInterface
+	interface TiledOperation {
+		TiledImage apply(TiledImageProcessor processor) throws IOException;
+	}
+
+	// MARK: fields
+	private final List<Path> inputs;
+	// the directory the inputs were listed from; their paths under it are mirrored under outputDir
+	private final Path inputRoot;
+	private final Path outputDir;
+	private final List<Operation> ops;
+	private final String widthArg;
+	private final String heightArg;
+	private final RGBWeights rgbWeights;
+	private final int threads;
+	private final boolean verbose;
+	// the fused point operations, when every operation is one and --stream was given
+	private final PointOperation streamKernel;
+	private final int bandHeight;
+	// the operations on memory-mapped tiles, when --tiled was given
+	private final List<TiledOperation> tiledOps;
+
+	private final AtomicInteger failures = new AtomicInteger();
+	private final AtomicLong pixels = new AtomicLong();
+
+	private BatchProcessor(String[] args) throws IOException {
+		String input = null, output = null, opsArg = null, weightsArg = "1,1,1", threadsArg = null;
+		String width = null, height = null, bandArg = null;
+		boolean verbose = false, stream = false, tiled = false;
+
+		for (int i = 0; i < args.length; ++i) {
+			switch (args[i]) {
+			case "--input":
+				input = value(args, ++i);
+				break;
+			case "--output":
+				output = value(args, ++i);
+				break;
+			case "--ops":
+				opsArg = value(args, ++i);
+				break;
+			case "--width":
+				width = value(args, ++i);
+				break;
+			case "--height":
+				height = value(args, ++i);
+				break;
+			case "--weights":
+				weightsArg = value(args, ++i);
+				break;
+			case "--threads":
+				threadsArg = value(args, ++i);
+				break;
+			case "--verbose":
+				verbose = true;
+				break;
+			case "--stream":
+				stream = true;
+				break;
+			case "--band":
+				bandArg = value(args, ++i);
+				break;
+			case "--tiled":
+				tiled = true;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown argument: " + args[i]);
+			}
+		}
+
+		if (input == null | output == null | opsArg == null)
+			throw new IllegalArgumentException("--input, --output and --ops are required");
+
+		inputRoot = inputRoot(input);
+		inputs = listInputs(input, inputRoot);
+		outputDir = Paths.get(output);
+		widthArg = width;
+		heightArg = height;
+		rgbWeights = parseWeights(weightsArg);
+		threads = threadsArg == null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threadsArg);
+		this.verbose = verbose;
+
+		ops = new ArrayList<>();
+		PointOperation points = null;
+		boolean streamable = true;
+		for (String op : opsArg.split(",")) {
+			ops.add(parseOperation(op.trim()));
+			PointOperation point = parsePointOperation(op.trim());
+			if (point == null)
+				streamable = false;
+			else
+				points = points == null ? point : points.andThen(point);
+		}
+		if (stream & !streamable)
+			throw new IllegalArgumentException("--stream supports only chains of hue and greyscale");
+		streamKernel = stream ? points : null;
+		bandHeight = bandArg == null ? StreamingProcessor.DEFAULT_BAND_HEIGHT : Integer.parseInt(bandArg);
+		if (stream & tiled)
+			throw new IllegalArgumentException("--stream and --tiled can not be combined");
+		tiledOps = tiled ? parseTiledOperations(opsArg) : null;
+
+		if (threads < 1)
+			throw new IllegalArgumentException("--threads must be positive");
+	}
+
+	// Runs the batch described by args and returns the process exit code.
+	public static int run(String[] args) {
+		BatchProcessor batch;
+		try {
+			batch = new BatchProcessor(args);
+		} catch (IllegalArgumentException | IOException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			return 2;
+		}
+
+		try {
+			return batch.run();
+		} catch (IOException | InterruptedException e) {
+			System.err.println("Batch aborted: " + e.getMessage());
+			return 1;
+		}
+	}
+
+	private int run() throws IOException, InterruptedException {
+		if ((streamKernel != null | tiledOps != null) && inputs.stream().anyMatch(BatchProcessor::isJpeg))
+			System.err.println("Warning: JPEG images are decoded again for every band and written from a whole"
+					+ " image; --" + (streamKernel != null ? "stream" : "tiled") + " saves no memory for them");
+		Files.createDirectories(outputDir);
+		long start = System.nanoTime();
+
+		// A bounded queue that makes the lister wait for the workers, so a huge input
+		// set never piles up as pending tasks.
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(2 * threads), new ThreadPoolExecutor.CallerRunsPolicy());
+		for (Path in : inputs)
+			pool.execute(() -> process(in));
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+		int done = inputs.size() - failures.get();
+		System.out.println(String.format(Locale.ROOT, "Processed %d of %d images (%d failed) in %.1f s, %s",
+				done, inputs.size(), failures.get(), (System.nanoTime() - start) / 1e9,
+				ImageProcessor.throughput(start, pixels.get())));
+		return failures.get() == 0 ? 0 : 1;
+	}
+
+	private void process(Path in) {
+		long start = System.nanoTime();
+		Metrics metrics = Metrics.reset();
+		Logger logger = verbose ? s -> System.out.println(in.getFileName() + ": " + s) : s -> {};
+		try {
+			// same-named inputs of different directories must not overwrite each other's result
+			Path outPath = outputDir.resolve(inputRoot.relativize(in));
+			Files.createDirectories(outPath.getParent());
+			File out = outPath.toFile();
+			long inPixels;
+			if (streamKernel != null)
+				inPixels = new StreamingProcessor(logger, streamKernel, bandHeight).process(in.toFile(), out);
+			else if (tiledOps != null)
+				inPixels = processTiled(in, out, logger);
+			else
+				inPixels = processInMemory(in, out, logger);
+
+			pixels.addAndGet(inPixels);
+			System.out.println(String.format(Locale.ROOT, "%s: %.1f ms, %s", in,
+					(System.nanoTime() - start) / 1e6, ImageProcessor.throughput(start, inPixels)));
+			if (Metrics.SUMMARY)
+				System.out.println(in + ": " + metrics.summary());
+		} catch (Exception e) {
+			failures.incrementAndGet();
+			System.err.println(in + ": FAILED - " + e.getMessage());
+		}
+	}
+
+	// Runs the pipeline on the decoded image and writes the result; returns the number of input pixels.
+	private long processInMemory(Path in, File out, Logger logger) throws IOException {
+		BufferedImage img = ImageIO.read(in.toFile());
+		if (img == null)
+			throw new IOException("not a readable image");
+
+		img = toStandardType(img);
+		long inPixels = (long) img.getWidth() * img.getHeight();
+		ImagePipeline pipeline = new ImagePipeline(logger, img, rgbWeights);
+		for (Operation op : ops)
+			pipeline = op.append(pipeline);
+		img = pipeline.render(false);
+
+		String format = formatOf(out);
+		if (!ImageIO.write(img, format, out))
+			throw new IOException("no image writer for " + format);
+
+		return inPixels;
+	}
+
+	// Runs the tiled operations, dropping every intermediate image; returns the number of input pixels.
+	private long processTiled(Path in, File out, Logger logger) throws IOException {
+		TiledImage img = TiledImage.read(in.toFile());
+		long inPixels = (long) img.width * img.height;
+		try {
+			for (TiledOperation op : tiledOps) {
+				TiledImage next = op.apply(new TiledImageProcessor(logger, img, rgbWeights));
+				img.close();
+				img = next;
+			}
+			img.write(out, formatOf(out));
+		} finally {
+			img.close();
+		}
+		return inPixels;
+	}
+
+	// MARK: Operations
+	// The operations only extend the pipeline; render() runs them, fused where it can.
+	private Operation parseOperation(String name) {
+		PointOperation point = parsePointOperation(name);
+		if (point != null)
+			return pipeline -> pipeline.apply(point);
+
+		switch (name) {
+		case "nearest":
+			return pipeline -> pipeline.nearestNeighbor(targetWidth(pipeline), targetHeight(pipeline));
+		case "bilinear":
+			return pipeline -> pipeline.resample(ImageProcessor.ResamplingFilter.BILINEAR, targetWidth(pipeline),
+					targetHeight(pipeline));
+		case "bicubic":
+			return pipeline -> pipeline.resample(ImageProcessor.ResamplingFilter.BICUBIC, targetWidth(pipeline),
+					targetHeight(pipeline));
+		case "seams":
+			return pipeline -> pipeline.seamCarve(targetWidth(pipeline), targetHeight(pipeline),
+					new Mask(pipeline.width, pipeline.height));
+		default:
+			throw new IllegalArgumentException("Unknown operation: " + name);
+		}
+	}
+
+	// The point operation of that name, or null for any other operation.
+	private PointOperation parsePointOperation(String name) {
+		switch (name) {
+		case "hue":
+			return PointOperation.changeHue(rgbWeights);
+		case "greyscale":
+			return PointOperation.greyscale(rgbWeights);
+		default:
+			return null;
+		}
+	}
+
+	// The operations of a --tiled run; consecutive point operations are fused into a single pass.
+	private List<TiledOperation> parseTiledOperations(String opsArg) {
+		List<TiledOperation> ans = new ArrayList<>();
+		PointOperation points = null;
+		for (String op : opsArg.split(",")) {
+			PointOperation point = parsePointOperation(op.trim());
+			if (point != null) {
+				points = points == null ? point : points.andThen(point);
+				continue;
+			}
+			if (!op.trim().equals("nearest"))
+				throw new IllegalArgumentException("--tiled supports only chains of hue, greyscale and nearest");
+
+			if (points != null)
+				ans.add(fusedTiledOperation(points));
+			points = null;
+			ans.add(processor -> processor.nearestNeighbor(parseSize(widthArg, processor.workingImage.width),
+					parseSize(heightArg, processor.workingImage.height)));
+		}
+		if (points != null)
+			ans.add(fusedTiledOperation(points));
+		return ans;
+	}
+
+	private static TiledOperation fusedTiledOperation(PointOperation points) {
+		return processor -> processor.apply(points);
+	}
+
+	private int targetWidth(ImagePipeline pipeline) {
+		return parseSize(widthArg, pipeline.width);
+	}
+
+	private int targetHeight(ImagePipeline pipeline) {
+		return parseSize(heightArg, pipeline.height);
+	}
+
+	// A size is either absolute ("640") or relative to the current one ("80%").
+	private static int parseSize(String arg, int current) {
+		if (arg == null)
+			return current;
+
+		int ans = arg.endsWith("%")
+				? (int) Math.round(current * Double.parseDouble(arg.substring(0, arg.length() - 1)) / 100)
+				: Integer.parseInt(arg);
+		if (ans <= 0)
+			throw new IllegalArgumentException("Target size must be positive: " + arg);
+
+		return ans;
+	}
+
+	private static RGBWeights parseWeights(String arg) {
+		int[] w = Arrays.stream(arg.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+		if (w.length != 3 || Arrays.stream(w).anyMatch(v -> v < 0 | v > 100) || w[0] + w[1] + w[2] <= 0)
+			throw new IllegalArgumentException("The RGB weights values must be Integers between 0 and 100,"
+					+ " and their amount must be positive.");
+
+		return new RGBWeights(w[0], w[1], w[2]);
+	}
+
+	// MARK: Helpers
+	// The directory the inputs are listed from: the directory itself, or the longest literal prefix of a glob.
+	private static Path inputRoot(String input) {
+		Path dir = Paths.get(input);
+		if (Files.isDirectory(dir))
+			return dir;
+
+		int firstGlobChar = input.length();
+		for (char c : "*?[{".toCharArray())
+			if (input.indexOf(c) >= 0)
+				firstGlobChar = Math.min(firstGlobChar, input.indexOf(c));
+		if (firstGlobChar == input.length())
+			throw new IllegalArgumentException("No such directory: " + input);
+
+		int slash = input.lastIndexOf(File.separatorChar, firstGlobChar);
+		return Paths.get(slash < 0 ? "." : input.substring(0, slash + 1));
+	}
+
+	/*
+	 * Lists the readable images in a directory, or the files under root matching a glob
+	 * such as "photos/**.jpg".
+	 */
+	private static List<Path> listInputs(String input, Path root) throws IOException {
+		if (Files.isDirectory(Paths.get(input))) {
+			Set<String> suffixes = new HashSet<>();
+			for (String suffix : ImageIO.getReaderFileSuffixes())
+				suffixes.add(suffix.toLowerCase(Locale.ROOT));
+
+			try (Stream<Path> files = Files.list(root)) {
+				return files.filter(Files::isRegularFile).filter(p -> {
+					String name = p.getFileName().toString();
+					return suffixes.contains(name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT));
+				}).sorted().collect(Collectors.toList());
+			}
+		}
+
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + input);
+		try (Stream<Path> files = Files.walk(root)) {
+			return files.filter(Files::isRegularFile).filter(p -> matcher.matches(p.normalize()))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	// Results keep the suffix, so a JPEG input is also a JPEG output.
+	private static boolean isJpeg(Path in) {
+		String name = in.getFileName().toString().toLowerCase(Locale.ROOT);
+		return name.endsWith(".jpg") | name.endsWith(".jpeg");
+	}
+
+	// The output format, from the suffix of the output file.
+	private static String formatOf(File out) {
+		String name = out.getName();
+		return name.contains(".") ? name.substring(name.lastIndexOf('.') + 1) : "png";
+	}
+
+	// ImageIO may decode into TYPE_CUSTOM images, which can not be used to create new ones.
+	private static BufferedImage toStandardType(BufferedImage img) {
+		if (img.getType() != BufferedImage.TYPE_CUSTOM)
+			return img;
+
+		int type = img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+		BufferedImage ans = new BufferedImage(img.getWidth(), img.getHeight(), type);
+		Graphics2D g = ans.createGraphics();
+		g.drawImage(img, 0, 0, null);
+		g.dispose();
+		return ans;
+	}
+
+	private static String value(String[] args, int i) {
+		if (i >= args.length)
+			throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+
+		return args[i];
+	}
+}
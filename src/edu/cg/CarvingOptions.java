@@ -0,0 +1,170 @@
+package edu.cg;
+
+/*
+ * Tuning knobs of SeamsCarver. Instances are immutable; every with* method
+ * returns a modified copy, so DEFAULT can be shared safely.
+ */
+public class CarvingOptions {
+	public static final CarvingOptions DEFAULT = new CarvingOptions();
+
+	private boolean incrementalEnergy;
+	private boolean incrementalCost;
+	private boolean parallelCost;
+	private int minChunkWidth;
+	private int seamsPerPass;
+	private int pyramidLevels;
+	private int pyramidBand;
+	private boolean measurePyramidDeviation;
+	private ProgressMonitor progressMonitor;
+
+	public CarvingOptions() {
+		incrementalEnergy = true;
+		incrementalCost = true;
+		parallelCost = false;
+		minChunkWidth = 1024;
+		seamsPerPass = 1;
+		pyramidLevels = 0;
+		pyramidBand = 8;
+		measurePyramidDeviation = false;
+		progressMonitor = ProgressMonitor.NONE;
+	}
+
+	private CarvingOptions(CarvingOptions other) {
+		incrementalEnergy = other.incrementalEnergy;
+		incrementalCost = other.incrementalCost;
+		parallelCost = other.parallelCost;
+		minChunkWidth = other.minChunkWidth;
+		seamsPerPass = other.seamsPerPass;
+		pyramidLevels = other.pyramidLevels;
+		pyramidBand = other.pyramidBand;
+		measurePyramidDeviation = other.measurePyramidDeviation;
+		progressMonitor = other.progressMonitor;
+	}
+
+	// When set, only the pixels next to a removed seam get their energy recomputed.
+	public boolean incrementalEnergy() {
+		return incrementalEnergy;
+	}
+
+	public CarvingOptions withIncrementalEnergy(boolean incrementalEnergy) {
+		CarvingOptions ans = new CarvingOptions(this);
+		ans.incrementalEnergy = incrementalEnergy;
+		return ans;
+	}
+
+	// When set, only the cone of cost cells below a removed seam is recomputed.
+	public boolean incrementalCost() {
+		return incrementalCost;
+	}
+
+	public CarvingOptions withIncrementalCost(boolean incrementalCost) {
+		CarvingOptions ans = new CarvingOptions(this);
+		ans.incrementalCost = incrementalCost;
+		return ans;
+	}
+
+	// When set, wide rows of the cost matrix are swept in parallel on the common ForkJoinPool.
+	public boolean parallelCost() {
+		return parallelCost;
+	}
+
+	public CarvingOptions withParallelCost(boolean parallelCost) {
+		CarvingOptions ans = new CarvingOptions(this);
+		ans.parallelCost = parallelCost;
+		return ans;
+	}
+
+	// The narrowest chunk of a row handed to a single task; narrower rows stay sequential.
+	public int minChunkWidth() {
+		return minChunkWidth;
+	}
+
+	public CarvingOptions withMinChunkWidth(int minChunkWidth) {
+		if (minChunkWidth < 1)
+			throw new IllegalArgumentException("minChunkWidth must be positive");
+
+		CarvingOptions ans = new CarvingOptions(this);
+		ans.minChunkWidth = minChunkWidth;
+		return ans;
+	}
+
+	/*
+	 * The number of non-crossing seams taken from a single cost matrix pass; the energy
+	 * is refreshed only between passes. 1 is exact carving, larger values trade quality
+	 * (see SeamsCarver.getRemovedCost) for speed.
+	 */
+	public int seamsPerPass() {
+		return seamsPerPass;
+	}
+
+	public CarvingOptions withSeamsPerPass(int seamsPerPass) {
+		if (seamsPerPass < 1)
+			throw new IllegalArgumentException("seamsPerPass must be positive");
+
+		CarvingOptions ans = new CarvingOptions(this);
+		ans.seamsPerPass = seamsPerPass;
+		return ans;
+	}
+
+	/*
+	 * The number of halvings of the coarse level of a box pyramid on which seams are
+	 * searched first; every coarse seam is then refined at full resolution within
+	 * pyramidBand columns of its upscaled path. 0 is exact carving.
+	 */
+	public int pyramidLevels() {
+		return pyramidLevels;
+	}
+
+	public CarvingOptions withPyramidLevels(int pyramidLevels) {
+		if (pyramidLevels < 0 | pyramidLevels > 8)
+			throw new IllegalArgumentException("pyramidLevels must be between 0 and 8");
+
+		CarvingOptions ans = new CarvingOptions(this);
+		ans.pyramidLevels = pyramidLevels;
+		return ans;
+	}
+
+	// The number of columns on each side of an upscaled coarse seam searched at full resolution.
+	public int pyramidBand() {
+		return pyramidBand;
+	}
+
+	public CarvingOptions withPyramidBand(int pyramidBand) {
+		if (pyramidBand < 1)
+			throw new IllegalArgumentException("pyramidBand must be positive");
+
+		CarvingOptions ans = new CarvingOptions(this);
+		ans.pyramidBand = pyramidBand;
+		return ans;
+	}
+
+	/*
+	 * When set, every refined seam is compared with the exact seam of the same state
+	 * (see SeamsCarver.getPyramidCostDeviation). This costs a full cost matrix per seam,
+	 * so it is meant for tuning the band and the depth, not for production runs.
+	 */
+	public boolean measurePyramidDeviation() {
+		return measurePyramidDeviation;
+	}
+
+	public CarvingOptions withMeasurePyramidDeviation(boolean measurePyramidDeviation) {
+		CarvingOptions ans = new CarvingOptions(this);
+		ans.measurePyramidDeviation = measurePyramidDeviation;
+		return ans;
+	}
+
+	/*
+	 * Not a tuning knob, but the monitor of the carving: the seam search is done by the
+	 * SeamsCarver constructor, so this is the one way to reach it. It gets the seams
+	 * found out of the seams requested, and cancels the search between two seams.
+	 */
+	public ProgressMonitor progressMonitor() {
+		return progressMonitor;
+	}
+
+	public CarvingOptions withProgressMonitor(ProgressMonitor progressMonitor) {
+		CarvingOptions ans = new CarvingOptions(this);
+		ans.progressMonitor = progressMonitor == null ? ProgressMonitor.NONE : progressMonitor;
+		return ans;
+	}
+}
@@ -0,0 +1,76 @@
+package edu.cg;
+
+import java.awt.image.BufferedImage;
+import java.util.function.UnaryOperator;
+
+/*
+ * A handle on an image or a mask that is copied only when it is written. read() hands
+ * out the value itself, which must never be modified through it, so readers (the image
+ * operations, the seam carver) share it for free. write() returns a value the handle
+ * owns alone, copying the shared one first; a handle that already owns its value
+ * returns it as it is, and later writes go to the same copy.
+ *
+ * share() hands out another handle on the same value; from then on both handles are
+ * shared, and each copies before its first write.
+ */
+public final class CopyOnWrite<T> {
+	// MARK: fields
+	private final UnaryOperator<T> copier;
+	private T value;
+	private boolean shared;
+
+	private CopyOnWrite(T value, UnaryOperator<T> copier, boolean shared) {
+		this.value = value;
+		this.copier = copier;
+		this.shared = shared;
+	}
+
+	// A handle that owns value: nothing else may hold it.
+	public static <T> CopyOnWrite<T> owned(T value, UnaryOperator<T> copier) {
+		return new CopyOnWrite<>(value, copier, false);
+	}
+
+	public static CopyOnWrite<BufferedImage> image(BufferedImage img) {
+		return owned(img, CopyOnWrite::copy);
+	}
+
+	public static CopyOnWrite<Mask> mask(Mask mask) {
+		return owned(mask, Mask::copy);
+	}
+
+	public synchronized T read() {
+		return value;
+	}
+
+	// The value, copied first unless this handle owns it alone.
+	public synchronized T write() {
+		if (shared) {
+			value = copier.apply(value);
+			shared = false;
+		}
+		return value;
+	}
+
+	/*
+	 * The value when this handle owns it alone, or null when it is shared: for a writer
+	 * that can write its result into a new value instead of copying this one first.
+	 */
+	public synchronized T tryWrite() {
+		return shared ? null : value;
+	}
+
+	public synchronized boolean isShared() {
+		return shared;
+	}
+
+	// Another handle on the same value; both copy before their next write.
+	public synchronized CopyOnWrite<T> share() {
+		shared = true;
+		return new CopyOnWrite<>(value, copier, true);
+	}
+
+	// MARK: Copiers
+	public static BufferedImage copy(BufferedImage img) {
+		return new ImageProcessor(s -> {}, img, null).duplicateWorkingImage();
+	}
+}
@@ -2,8 +2,11 @@ package edu.cg;
 
 import java.util.ArrayDeque;
 import java.util.Deque;
-import java.util.function.BiConsumer;
-import java.util.function.Consumer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
 
 public abstract class FunctioalForEachLoops {
 	private int width;
@@ -23,11 +26,35 @@ public abstract class FunctioalForEachLoops {
 		}
 	}
 	
+	// With a progress monitor, forEachBand runs its bands in chunks of about this many pixels.
+	public static final int PROGRESS_CHUNK_PIXELS = 1 << 16;
+	
 	private Deque<Params> stack;
+	private Executor executor;
+	private ProgressMonitor progressMonitor;
 	
 	public FunctioalForEachLoops() {
 		width = height = 0;
 		stack = new ArrayDeque<>();
+		executor = ForkJoinPool.commonPool();
+		progressMonitor = ProgressMonitor.NONE;
+	}
+	
+	// Sets the executor used by the parallel loops (the common ForkJoinPool by default).
+	public final void setForEachExecutor(Executor executor) {
+		this.executor = executor == null ? ForkJoinPool.commonPool() : executor;
+	}
+	
+	/*
+	 * Sets the monitor of forEachBand: every chunk of rows first checks for cancellation
+	 * and then reports its rows as work done (ProgressMonitor.NONE by default).
+	 */
+	public final void setProgressMonitor(ProgressMonitor progressMonitor) {
+		this.progressMonitor = progressMonitor == null ? ProgressMonitor.NONE : progressMonitor;
+	}
+	
+	public final ProgressMonitor getProgressMonitor() {
+		return progressMonitor;
 	}
 	
 	public final void setForEachParameters(int width, int height) {
@@ -59,21 +86,87 @@ public abstract class FunctioalForEachLoops {
 		stack.pop().restoreParams();
 	}
 	
-	public final void forEach(BiConsumer<Integer, Integer> action) {
-		forEachHeight(y ->
-			forEachWidth(x ->
-				action.accept(y, x)
-			)
-		);
+	// MARK: Primitive functional interfaces, so that coordinates are never boxed.
+	@FunctionalInterface
+	public interface IntBiConsumer {
+		void accept(int y, int x);
+	}
+	
+	@FunctionalInterface
+	public interface BandAction {
+		void accept(int fromY, int toY);
+	}
+	
+	public final void forEach(IntBiConsumer action) {
+		for(int y = 0; y < height; ++y)
+			for(int x = 0; x < width; ++x)
+				action.accept(y, x);
 	}
 	
-	public final void forEachWidth(Consumer<Integer> action) {
+	public final void forEachWidth(IntConsumer action) {
 		for(int x = 0; x < width; ++x)
 			action.accept(x);
 	}
 	
-	public final void forEachHeight(Consumer<Integer> action) {
+	public final void forEachHeight(IntConsumer action) {
 		for(int y = 0; y < height; ++y)
 			action.accept(y);
 	}
+	
+	/*
+	 * Like forEach, but the rows are split into bands that run concurrently on the
+	 * executor. Pixels inside a band are visited in order; bands are not ordered.
+	 */
+	public final void forEachParallel(IntBiConsumer action) {
+		forEachBand(true, (fromY, toY) -> {
+			for(int y = fromY; y < toY; ++y)
+				for(int x = 0; x < width; ++x)
+					action.accept(y, x);
+		});
+	}
+	
+	/*
+	 * Calls action with [fromY, toY) row ranges that cover the whole height.
+	 * A sequential loop makes a single call on the current thread; a parallel one
+	 * makes one call per band on the executor and returns once all bands are done.
+	 */
+	public final void forEachBand(boolean parallel, BandAction bandAction) {
+		BandAction action = progressMonitor == ProgressMonitor.NONE ? bandAction : monitored(bandAction);
+		int processors = Runtime.getRuntime().availableProcessors();
+		int bands = parallel & processors > 1 ? Math.min(height, 4 * processors) : 1;
+		if(bands <= 1) {
+			action.accept(0, height);
+			return;
+		}
+		
+		int bandHeight = (height + bands - 1) / bands;
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[(height + bandHeight - 1) / bandHeight];
+		for(int i = 0; i < futures.length; ++i) {
+			int fromY = i * bandHeight;
+			int toY = Math.min(fromY + bandHeight, height);
+			futures[i] = CompletableFuture.runAsync(() -> action.accept(fromY, toY), executor);
+		}
+		
+		try {
+			CompletableFuture.allOf(futures).join();
+		} catch(CompletionException e) {
+			if(e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			throw e;
+		}
+	}
+	
+	// action, run over chunks of rows with a cancellation check before each and a progress report after it.
+	private BandAction monitored(BandAction action) {
+		ProgressMonitor monitor = progressMonitor;
+		int chunk = Math.max(1, PROGRESS_CHUNK_PIXELS / Math.max(1, width));
+		return (fromY, toY) -> {
+			for(int y = fromY; y < toY; y += chunk) {
+				monitor.checkCancelled();
+				int chunkEnd = Math.min(toY, y + chunk);
+				action.accept(y, chunkEnd);
+				monitor.worked(chunkEnd - y);
+			}
+		};
+	}
 }
@@ -0,0 +1,270 @@
+package edu.cg;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.cg.ImageProcessor.ResamplingFilter;
+
+/*
+ * A lazily evaluated chain of ImageProcessor and SeamsCarver operations over a source
+ * image. Every method returns a new, longer pipeline and computes nothing; render()
+ * plans the whole chain and materializes only the images it can not avoid:
+ *  - adjacent point operations are fused into one PointOperation;
+ *  - a point operation before a nearest neighbor downscale is moved after it, where it
+ *    runs over fewer pixels (picking pixels commutes with any per-pixel operation), and
+ *    consecutive nearest neighbor resizes compose into a single one;
+ *  - a point operation then runs inside the row loop of the resize next to it, on the
+ *    rows as they are read or written, or in place over a seam carving result.
+ * A pipeline never modifies its source, so the source needs no defensive copy. The fused
+ * results are those of the operations run one by one, for images of 8 bits per channel.
+ */
+public class ImagePipeline {
+	private enum Kind {
+		POINT, NEAREST, RESAMPLE, SEAMS
+	}
+
+	// MARK: fields
+	public final Logger logger;
+	public final BufferedImage source;
+	public final RGBWeights rgbWeights;
+	// the size of the image the pipeline renders
+	public final int width;
+	public final int height;
+	// the pipeline this one extends, and its last stage; both null for the bare source
+	private final ImagePipeline previous;
+	private final Stage stage;
+
+	public ImagePipeline(Logger logger, BufferedImage source, RGBWeights rgbWeights) {
+		this.logger = logger;
+		this.source = source;
+		this.rgbWeights = rgbWeights;
+		width = source.getWidth();
+		height = source.getHeight();
+		previous = null;
+		stage = null;
+	}
+
+	private ImagePipeline(ImagePipeline previous, Stage stage) {
+		logger = previous.logger;
+		source = previous.source;
+		rgbWeights = previous.rgbWeights;
+		width = stage.kind == Kind.POINT ? previous.width : stage.width;
+		height = stage.kind == Kind.POINT ? previous.height : stage.height;
+		this.previous = previous;
+		this.stage = stage;
+	}
+
+	// MARK: Operations
+	public ImagePipeline changeHue() {
+		return apply(PointOperation.changeHue(rgbWeights));
+	}
+
+	public ImagePipeline greyscale() {
+		return apply(PointOperation.greyscale(rgbWeights));
+	}
+
+	public ImagePipeline apply(PointOperation operation) {
+		return new ImagePipeline(this, new Stage(Kind.POINT, operation, null, null, null, null, width, height, width,
+				height, null, null));
+	}
+
+	public ImagePipeline nearestNeighbor(int outWidth, int outHeight) {
+		checkSize(outWidth, outHeight);
+		return new ImagePipeline(this,
+				new Stage(Kind.NEAREST, null, null, ImageProcessor.nearestIndices(width, outWidth),
+						ImageProcessor.nearestIndices(height, outHeight), null, width, height, outWidth, outHeight, null,
+						null));
+	}
+
+	public ImagePipeline resample(ResamplingFilter filter, int outWidth, int outHeight) {
+		checkSize(outWidth, outHeight);
+		return new ImagePipeline(this,
+				new Stage(Kind.RESAMPLE, null, filter, null, null, null, width, height, outWidth, outHeight, null, null));
+	}
+
+	// Seam carving down to outWidth x outHeight; imageMask covers the image at this point of the pipeline.
+	public ImagePipeline seamCarve(int outWidth, int outHeight, Mask imageMask) {
+		checkSize(outWidth, outHeight);
+		if (imageMask.width != width | imageMask.height != height)
+			throw new IllegalArgumentException("The mask must be " + width + "x" + height);
+
+		return new ImagePipeline(this, new Stage(Kind.SEAMS, null, null, null, null, imageMask, width, height,
+				outWidth, outHeight, null, null));
+	}
+
+	private static void checkSize(int outWidth, int outHeight) {
+		if (outWidth < 1 | outHeight < 1)
+			throw new IllegalArgumentException("The output size must be positive");
+	}
+
+	// MARK: Rendering
+	// Plans the pipeline and runs it, every pass in parallel when it is large enough; the result is always a new image.
+	public BufferedImage render() {
+		return render(null, ProgressMonitor.NONE);
+	}
+
+	// render, with every pass run in parallel or not.
+	public BufferedImage render(boolean parallel) {
+		return render(Boolean.valueOf(parallel), ProgressMonitor.NONE);
+	}
+
+	// render, reporting the progress of every pass to monitor, which may cancel it.
+	public BufferedImage render(ProgressMonitor monitor) {
+		return render(null, monitor);
+	}
+
+	private BufferedImage render(Boolean parallel, ProgressMonitor monitor) {
+		List<Stage> stages = new ArrayList<>();
+		for (ImagePipeline p = this; p.stage != null; p = p.previous)
+			stages.add(0, p.stage);
+		List<Stage> passes = plan(stages);
+		logger.log("Pipeline: " + stages.size() + " operations in " + passes.size() + " passes");
+
+		if (passes.isEmpty())
+			return new ImageProcessor(logger, source, rgbWeights).duplicateWorkingImage();
+
+		BufferedImage img = source;
+		for (Stage pass : passes)
+			img = pass.run(logger, img, rgbWeights,
+					parallel != null ? parallel : ImageProcessor.parallelByDefault((long) pass.width * pass.height),
+					monitor);
+		return img;
+	}
+
+	/*
+	 * Rewrites the stages until no rule applies: fuses adjacent point operations, moves
+	 * point operations past nearest neighbor downscales and composes consecutive nearest
+	 * neighbor resizes. Then every point operation is folded into the row loops of the
+	 * resize before it, or else of the one after it; only a point operation with no such
+	 * neighbor is left as a pass of its own.
+	 */
+	private static List<Stage> plan(List<Stage> stages) {
+		List<Stage> list = new ArrayList<>(stages);
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 0; i + 1 < list.size(); ++i) {
+				Stage a = list.get(i);
+				Stage b = list.get(i + 1);
+				if (a.kind == Kind.POINT & b.kind == Kind.POINT) {
+					list.set(i, a.withOperation(a.operation.andThen(b.operation)));
+					list.remove(i + 1);
+				} else if (a.kind == Kind.POINT & b.kind == Kind.NEAREST && b.downscales()) {
+					list.set(i, b);
+					list.set(i + 1, a);
+				} else if (a.kind == Kind.NEAREST & b.kind == Kind.NEAREST) {
+					list.set(i, a.composedWith(b));
+					list.remove(i + 1);
+				} else {
+					continue;
+				}
+				changed = true;
+			}
+		}
+
+		List<Stage> passes = new ArrayList<>();
+		PointOperation before = null;
+		for (int i = 0; i < list.size(); ++i) {
+			Stage s = list.get(i);
+			if (s.kind != Kind.POINT) {
+				passes.add(s.withHooks(before, null));
+				before = null;
+			} else if (!passes.isEmpty() && passes.get(passes.size() - 1).kind != Kind.POINT) {
+				Stage last = passes.get(passes.size() - 1);
+				passes.set(passes.size() - 1, last.withHooks(last.before, s.operation));
+			} else if (i + 1 < list.size() && list.get(i + 1).kind != Kind.SEAMS) {
+				before = s.operation;
+			} else {
+				passes.add(s);
+			}
+		}
+		return passes;
+	}
+
+	/*
+	 * One operation of the pipeline, with the sizes around it. A planned resize may carry
+	 * point operations to run on its input rows (before) and on its output rows (after).
+	 */
+	private static final class Stage {
+		final Kind kind;
+		final PointOperation operation;
+		final ResamplingFilter filter;
+		final int[] columns;
+		final int[] rows;
+		final Mask mask;
+		final int inWidth;
+		final int inHeight;
+		final int width;
+		final int height;
+		final PointOperation before;
+		final PointOperation after;
+
+		Stage(Kind kind, PointOperation operation, ResamplingFilter filter, int[] columns, int[] rows,
+				Mask mask, int inWidth, int inHeight, int width, int height, PointOperation before,
+				PointOperation after) {
+			this.kind = kind;
+			this.operation = operation;
+			this.filter = filter;
+			this.columns = columns;
+			this.rows = rows;
+			this.mask = mask;
+			this.inWidth = inWidth;
+			this.inHeight = inHeight;
+			this.width = width;
+			this.height = height;
+			this.before = before;
+			this.after = after;
+		}
+
+		boolean downscales() {
+			return (long) width * height < (long) inWidth * inHeight;
+		}
+
+		Stage withOperation(PointOperation operation) {
+			return new Stage(kind, operation, filter, columns, rows, mask, inWidth, inHeight, width, height, before,
+					after);
+		}
+
+		Stage withHooks(PointOperation before, PointOperation after) {
+			return new Stage(kind, operation, filter, columns, rows, mask, inWidth, inHeight, width, height, before,
+					after);
+		}
+
+		// this nearest neighbor resize and then next, as one.
+		Stage composedWith(Stage next) {
+			int[] composedColumns = new int[next.width];
+			for (int x = 0; x < next.width; ++x)
+				composedColumns[x] = columns[next.columns[x]];
+			int[] composedRows = new int[next.height];
+			for (int y = 0; y < next.height; ++y)
+				composedRows[y] = rows[next.rows[y]];
+			return new Stage(Kind.NEAREST, null, null, composedColumns, composedRows, null, inWidth, inHeight,
+					next.width, next.height, null, null);
+		}
+
+		BufferedImage run(Logger logger, BufferedImage img, RGBWeights rgbWeights, boolean parallel,
+				ProgressMonitor monitor) {
+			ImageProcessor processor = new ImageProcessor(logger, img, rgbWeights, width, height);
+			processor.setProgressMonitor(monitor);
+			switch (kind) {
+			case POINT:
+				return processor.apply(operation, parallel);
+			case NEAREST:
+				return processor.nearestNeighbor(columns, rows, before, after, parallel);
+			case RESAMPLE:
+				return processor.resample(filter, before, after, parallel);
+			default: // seam carving
+				BufferedImage ans = new SeamsCarver(logger, img, width, height, rgbWeights, mask,
+						CarvingOptions.DEFAULT.withProgressMonitor(monitor)).resize();
+				if (after != null) {
+					// the carved image is new, so the point operation runs over it in place
+					ImageProcessor carved = new ImageProcessor(logger, CopyOnWrite.image(ans), rgbWeights);
+					carved.setProgressMonitor(monitor);
+					ans = carved.applyInPlace(after, parallel);
+				}
+				return ans;
+			}
+		}
+	}
+}
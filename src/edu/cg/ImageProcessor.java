@@ -1,7 +1,9 @@
 package edu.cg;
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import edu.cg.Metrics.Phase;
 
 public class ImageProcessor extends FunctioalForEachLoops {
 	// MARK: fields
@@ -13,14 +15,17 @@ public class ImageProcessor extends FunctioalForEachLoops {
 	public final int workingImageType;
 	public final int outWidth;
 	public final int outHeight;
+	// the handle workingImage was read from; the operations only read it
+	private final CopyOnWrite<BufferedImage> image;
 
 	// MARK: constructors
-	public ImageProcessor(Logger logger, BufferedImage workingImage, RGBWeights rgbWeights, int outWidth,
+	public ImageProcessor(Logger logger, CopyOnWrite<BufferedImage> image, RGBWeights rgbWeights, int outWidth,
 			int outHeight) {
 		super(); // initializing for each loops...
 
 		this.logger = logger;
-		this.workingImage = workingImage;
+		this.image = image;
+		this.workingImage = image.read();
 		this.rgbWeights = rgbWeights;
 		inWidth = workingImage.getWidth();
 		inHeight = workingImage.getHeight();
@@ -30,33 +35,124 @@ public class ImageProcessor extends FunctioalForEachLoops {
 		setForEachInputParameters();
 	}
 
+	// The caller keeps workingImage, so it is shared and never written.
+	public ImageProcessor(Logger logger, BufferedImage workingImage, RGBWeights rgbWeights, int outWidth,
+			int outHeight) {
+		this(logger, CopyOnWrite.image(workingImage).share(), rgbWeights, outWidth, outHeight);
+	}
+
+	public ImageProcessor(Logger logger, CopyOnWrite<BufferedImage> image, RGBWeights rgbWeights) {
+		this(logger, image, rgbWeights, image.read().getWidth(), image.read().getHeight());
+	}
+
 	public ImageProcessor(Logger logger, BufferedImage workingImage, RGBWeights rgbWeights) {
 		this(logger, workingImage, rgbWeights, workingImage.getWidth(), workingImage.getHeight());
 	}
 
+	// Images of at least this many pixels are processed in parallel by default.
+	public static final int PARALLEL_PIXELS_THRESHOLD = 1 << 20;
+
+	// Whether an operation over the given number of pixels should run in parallel by default.
+	public static boolean parallelByDefault(long pixels) {
+		return pixels >= PARALLEL_PIXELS_THRESHOLD;
+	}
+
 	// Changes the picture's hue - example
 	public BufferedImage changeHue() {
+		return changeHue(parallelByDefault((long) inWidth * inHeight));
+	}
+
+	public BufferedImage changeHue(boolean parallel) {
 		logger.log("Prepareing for hue changing...");
+		getProgressMonitor().begin("Changing hue", inHeight);
+		long start = System.nanoTime();
+		Metrics.Timer timer = Metrics.start(Phase.CHANGE_HUE);
+
+		BufferedImage ans = newEmptyInputSizedImage();
+		PixelBuffer src = new PixelBuffer(workingImage);
+		PixelBuffer dst = new PixelBuffer(ans);
+
+		forEachBand(parallel, (fromY, toY) -> {
+			int[] row = src.newRow();
+			for (int y = fromY; y < toY; ++y) {
+				src.getRow(y, row);
+				changeHue(row, 0, inWidth, rgbWeights);
+				dst.putRow(y, row);
+			}
+		});
+
+		timer.stop();
+		logger.log("Changing hue done! (" + throughput(start, (long) inWidth * inHeight) + ")");
+
+		return ans;
+	}
+
+	// MARK: Row kernels, shared by the BufferedImage and the TiledImage operations.
+	// The Vector API kernels, or null when jdk.incubator.vector is missing or -Dcg.scalar=true.
+	private static final SimdKernels SIMD = loadSimdKernels();
+
+	private static SimdKernels loadSimdKernels() {
+		if (Boolean.getBoolean("cg.scalar"))
+			return null;
+
+		try {
+			return (SimdKernels) Class.forName("edu.cg.vector.VectorKernels").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
 
+	// The number of int lanes of the vector kernels in use, 1 for the scalar ones.
+	public static int kernelLanes() {
+		return SIMD == null ? 1 : SIMD.lanes();
+	}
+
+	// Changes the hue of the packed pixels row[from..to) in place.
+	public static void changeHue(int[] row, int from, int to, RGBWeights rgbWeights) {
+		if (SIMD != null)
+			SIMD.changeHue(row, from, to, rgbWeights);
+		else
+			changeHueScalar(row, from, to, rgbWeights);
+	}
+
+	// Turns the packed pixels row[from..to) into their weighted grey level in place.
+	public static void greyscale(int[] row, int from, int to, RGBWeights rgbWeights) {
+		if (SIMD != null)
+			SIMD.greyscale(row, from, to, rgbWeights);
+		else
+			greyscaleScalar(row, from, to, rgbWeights);
+	}
+
+	public static void changeHueScalar(int[] row, int from, int to, RGBWeights rgbWeights) {
 		int r = rgbWeights.redWeight;
 		int g = rgbWeights.greenWeight;
 		int b = rgbWeights.blueWeight;
 		int max = rgbWeights.maxWeight;
 
-		BufferedImage ans = newEmptyInputSizedImage();
+		for (int x = from; x < to; ++x) {
+			int rgb = row[x];
+			int red = r * ((rgb >> 16) & 0xFF) / max;
+			int green = g * ((rgb >> 8) & 0xFF) / max;
+			int blue = b * (rgb & 0xFF) / max;
+			row[x] = 0xFF000000 | red << 16 | green << 8 | blue;
+		}
+	}
 
-		forEach((y, x) -> {
-			Color c = new Color(workingImage.getRGB(x, y));
-			int red = r * c.getRed() / max;
-			int green = g * c.getGreen() / max;
-			int blue = b * c.getBlue() / max;
-			Color color = new Color(red, green, blue);
-			ans.setRGB(x, y, color.getRGB());
-		});
+	public static void greyscaleScalar(int[] row, int from, int to, RGBWeights rgbWeights) {
+		int r = rgbWeights.redWeight;
+		int g = rgbWeights.greenWeight;
+		int b = rgbWeights.blueWeight;
+		int weightSum = rgbWeights.weightsAmount;
 
-		logger.log("Changing hue done!");
+		for (int x = from; x < to; ++x) {
+			int rgb = row[x];
+			int red = r * ((rgb >> 16) & 0xFF);
+			int green = g * ((rgb >> 8) & 0xFF);
+			int blue = b * (rgb & 0xFF);
 
-		return ans;
+			int greyColor = (red + green + blue) / weightSum;
+			row[x] = 0xFF000000 | greyColor << 16 | greyColor << 8 | greyColor;
+		}
 	}
 
 	// Sets the ForEach parameters with the input dimensions
@@ -87,59 +183,365 @@ public class ImageProcessor extends FunctioalForEachLoops {
 	// A helper method that deep copies the current working image.
 	public final BufferedImage duplicateWorkingImage() {
 		BufferedImage output = newEmptyInputSizedImage();
-
-		forEach((y, x) -> output.setRGB(x, y, workingImage.getRGB(x, y)));
+		PixelBuffer src = new PixelBuffer(workingImage);
+		PixelBuffer dst = new PixelBuffer(output);
+
+		forEachBand(parallelByDefault((long) inWidth * inHeight), (fromY, toY) -> {
+			int[] row = src.newRow();
+			for (int y = fromY; y < toY; ++y) {
+				src.getRow(y, row);
+				dst.putRow(y, row);
+			}
+		});
 
 		return output;
 	}
-	
+
+	// A helper method that formats the pixel throughput of an operation started at startNanos.
+	public static String throughput(long startNanos, long pixels) {
+		double seconds = Math.max(System.nanoTime() - startNanos, 1) / 1e9;
+		return String.format("%.1f MP/s", pixels / 1e6 / seconds);
+	}
+
 	public BufferedImage greyscale() {
-		logger.log("Preparing for greyscale changing...");
+		return greyscale(parallelByDefault((long) inWidth * inHeight));
+	}
 
-		int r = rgbWeights.redWeight;
-		int g = rgbWeights.greenWeight;
-		int b = rgbWeights.blueWeight;
-		int weightSum = rgbWeights.weightsAmount;
+	public BufferedImage greyscale(boolean parallel) {
+		logger.log("Preparing for greyscale changing...");
+		getProgressMonitor().begin("Greyscale", inHeight);
+		long start = System.nanoTime();
+		Metrics.Timer timer = Metrics.start(Phase.GREYSCALE);
 
 		BufferedImage ans = newEmptyInputSizedImage();
+		PixelBuffer src = new PixelBuffer(workingImage);
+		PixelBuffer dst = new PixelBuffer(ans);
+
+		forEachBand(parallel, (fromY, toY) -> {
+			int[] row = src.newRow();
+			for (int y = fromY; y < toY; ++y) {
+				src.getRow(y, row);
+				greyscale(row, 0, inWidth, rgbWeights);
+				dst.putRow(y, row);
+			}
+		});
 
-		forEach((y, x) -> {
-			Color c = new Color(workingImage.getRGB(x, y));
-			int red = r * c.getRed();
-			int green = g * c.getGreen();
-			int blue = b * c.getBlue();
+		timer.stop();
+		logger.log("Changing to greyscale done! (" + throughput(start, (long) inWidth * inHeight) + ")");
 
-			int greyColor = (red + green + blue) / weightSum;
-			Color color = new Color(greyColor, greyColor, greyColor);
-			ans.setRGB(x, y, color.getRGB());
+		return ans;
+	}
+
+	public BufferedImage apply(PointOperation operation) {
+		return apply(operation, parallelByDefault((long) inWidth * inHeight));
+	}
+
+	// Runs a (fused) chain of point operations in a single pass over the image.
+	public BufferedImage apply(PointOperation operation, boolean parallel) {
+		return apply(operation, newEmptyInputSizedImage(), parallel);
+	}
+
+	/*
+	 * apply, writing over workingImage itself when this processor's handle owns it alone;
+	 * a shared image is left as it is and the result is a new image, as with apply.
+	 */
+	BufferedImage applyInPlace(PointOperation operation, boolean parallel) {
+		BufferedImage owned = image.tryWrite();
+		return apply(operation, owned != null ? owned : newEmptyInputSizedImage(), parallel);
+	}
+
+	private BufferedImage apply(PointOperation operation, BufferedImage ans, boolean parallel) {
+		logger.log("Prepareing for " + operation.operations() + " point operations in " + operation.stages()
+				+ " stages...");
+		getProgressMonitor().begin("Point operations", inHeight);
+		long start = System.nanoTime();
+		Metrics.Timer timer = Metrics.start(Phase.POINT_OPERATIONS);
+
+		PixelBuffer src = new PixelBuffer(workingImage);
+		PixelBuffer dst = new PixelBuffer(ans);
+
+		forEachBand(parallel, (fromY, toY) -> {
+			int[] row = src.newRow();
+			for (int y = fromY; y < toY; ++y) {
+				src.getRow(y, row);
+				operation.apply(row, 0, inWidth);
+				dst.putRow(y, row);
+			}
 		});
 
-		logger.log("Changing to greyscale done!");
+		timer.stop();
+		logger.log("Point operations done! (" + throughput(start, (long) inWidth * inHeight) + ")");
 
 		return ans;
 	}
 
 	public BufferedImage nearestNeighbor() {
-        logger.log("Prepareing for nearestNeighbor changing...");
+		return nearestNeighbor(parallelByDefault((long) outWidth * outHeight));
+	}
+
+	public BufferedImage nearestNeighbor(boolean parallel) {
+		return nearestNeighbor(nearestIndices(inWidth, outWidth), nearestIndices(inHeight, outHeight), null, null,
+				parallel);
+	}
+
+	// The source position of every output position of a nearest neighbor resize.
+	static int[] nearestIndices(int inSize, int outSize) {
+		//Multiply by 1.0 to preform non-integer division
+		double ratio = (inSize * 1.0) / outSize;
+		int[] ans = new int[outSize];
+		for (int i = 0; i < outSize; ++i)
+			ans[i] = (int) (ratio * i);
+		return ans;
+	}
 
-        //Multiply by 1.0 to preform non-integer division
-        double widthRatio = (inWidth * 1.0) / this.outWidth;
-        double heightRatio = (inHeight * 1.0) / this.outHeight;
+	/*
+	 * Nearest neighbor through explicit index maps: output pixel (x, y) is source pixel
+	 * (columns[x], rows[y]). before runs on every source row as it is read, and after on
+	 * every output row before it is written; either may be null.
+	 */
+	BufferedImage nearestNeighbor(int[] columns, int[] rows, RowKernel before, RowKernel after, boolean parallel) {
+        logger.log("Prepareing for nearestNeighbor changing...");
+        getProgressMonitor().begin("Nearest neighbor", outHeight);
+        long start = System.nanoTime();
+        Metrics.Timer timer = Metrics.start(Phase.NEAREST_NEIGHBOR);
 
         BufferedImage ans = newEmptyOutputSizedImage();
+        pushForEachParameters();
         setForEachOutputParameters();
 
-        forEach((y, x) -> {
-            int originaWidthlIndex = (int) (widthRatio * x);
-            int originaHeightlIndex = (int) (heightRatio * y);
-
-            Color color = new Color(workingImage.getRGB(originaWidthlIndex, originaHeightlIndex));
-            ans.setRGB(x, y, color.getRGB());
+        PixelBuffer src = new PixelBuffer(workingImage);
+        PixelBuffer dst = new PixelBuffer(ans);
+
+        forEachBand(parallel, (fromY, toY) -> {
+            int[] srcRow = src.newRow();
+            int[] dstRow = dst.newRow();
+            for (int y = fromY; y < toY; ++y) {
+                src.getRow(rows[y], srcRow);
+                if (before != null)
+                    before.apply(srcRow, 0, inWidth);
+                for (int x = 0; x < outWidth; ++x)
+                    dstRow[x] = 0xFF000000 | srcRow[columns[x]];
+                if (after != null)
+                    after.apply(dstRow, 0, outWidth);
+                dst.putRow(y, dstRow);
+            }
         });
+        popForEachParameters();
 
-        logger.log("Changing to nearestNeighbor done!");
+        timer.stop();
+        logger.log("Changing to nearestNeighbor done! (" + throughput(start, (long) outWidth * outHeight) + ")");
 
         return ans;
 	}
 
+	// MARK: Separable resampling
+	// The fixed-point precision of the resampling weights: 1.0 is 1 << WEIGHT_BITS.
+	private static final int WEIGHT_BITS = 14;
+
+	// A resampling kernel, with its support (radius) in input pixels when upscaling.
+	public static enum ResamplingFilter {
+		BILINEAR("bilinear", 1) {
+			@Override
+			double weight(double x) {
+				x = Math.abs(x);
+				return x < 1 ? 1 - x : 0;
+			}
+		},
+		// Catmull-Rom (a = -0.5): interpolating, and sharper than bilinear.
+		BICUBIC("bicubic", 2) {
+			@Override
+			double weight(double x) {
+				x = Math.abs(x);
+				if (x < 1)
+					return (1.5 * x - 2.5) * x * x + 1;
+				if (x < 2)
+					return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+				return 0;
+			}
+		};
+
+		public final String title;
+		public final double support;
+
+		ResamplingFilter(String title, double support) {
+			this.title = title;
+			this.support = support;
+		}
+
+		abstract double weight(double x);
+	}
+
+	/*
+	 * The taps of one axis of a resize: output position o reads the input positions
+	 * first[o] .. first[o] + taps - 1 with the fixed-point weights
+	 * weights[o * taps] ..., which sum to exactly 1 << WEIGHT_BITS; only the first
+	 * count[o] of them can be non-zero. When downscaling, the kernel is stretched by the
+	 * scale, so every input pixel contributes.
+	 */
+	private static final class WeightTable {
+		final int taps;
+		final int[] first;
+		final int[] count;
+		final int[] weights;
+
+		WeightTable(ResamplingFilter filter, int inSize, int outSize) {
+			double scale = (double) inSize / outSize;
+			double filterScale = Math.max(1, scale);
+			double support = filter.support * filterScale;
+			taps = Math.min(inSize, 2 * (int) Math.ceil(support) + 2);
+			first = new int[outSize];
+			count = new int[outSize];
+			weights = new int[outSize * taps];
+
+			double[] w = new double[taps];
+			for (int o = 0; o < outSize; ++o) {
+				double center = (o + 0.5) * scale;
+				int from = Math.max(0, (int) Math.floor(center - support));
+				int to = Math.min(inSize, (int) Math.ceil(center + support));
+				first[o] = Math.min(from, inSize - taps);
+				count[o] = to - first[o];
+
+				double sum = 0;
+				Arrays.fill(w, 0);
+				for (int i = from; i < to; ++i) {
+					w[i - first[o]] = filter.weight((i + 0.5 - center) / filterScale);
+					sum += w[i - first[o]];
+				}
+
+				// round to fixed point, and give the rounding error to the heaviest tap.
+				int total = 0;
+				int heaviest = 0;
+				for (int t = 0; t < taps; ++t) {
+					int fixed = (int) Math.round(w[t] / sum * (1 << WEIGHT_BITS));
+					weights[o * taps + t] = fixed;
+					total += fixed;
+					if (w[t] > w[heaviest])
+						heaviest = t;
+				}
+				weights[o * taps + heaviest] += (1 << WEIGHT_BITS) - total;
+			}
+		}
+	}
+
+	public BufferedImage bilinear() {
+		return resample(ResamplingFilter.BILINEAR, parallelByDefault((long) outWidth * outHeight));
+	}
+
+	public BufferedImage bicubic() {
+		return resample(ResamplingFilter.BICUBIC, parallelByDefault((long) outWidth * outHeight));
+	}
+
+	/*
+	 * Resizes workingImage to outWidth x outHeight in two passes: every input row is
+	 * resampled to outWidth columns into an intermediate packed plane, and then every
+	 * output row is resampled from the plane rows. Both passes run over row bands.
+	 */
+	public BufferedImage resample(ResamplingFilter filter, boolean parallel) {
+		return resample(filter, null, null, parallel);
+	}
+
+	// resample, with before run on every input row as it is read and after on every output row; either may be null.
+	BufferedImage resample(ResamplingFilter filter, RowKernel before, RowKernel after, boolean parallel) {
+		logger.log("Prepareing for " + filter.title + " resampling...");
+		// the rows of the horizontal pass and then those of the vertical one
+		getProgressMonitor().begin("Resampling " + filter.title, inHeight + outHeight);
+		long start = System.nanoTime();
+		Metrics.Timer timer = Metrics.start(Phase.RESAMPLE);
+
+		WeightTable columns = new WeightTable(filter, inWidth, outWidth);
+		WeightTable rows = new WeightTable(filter, inHeight, outHeight);
+		int[] plane = new int[inHeight * outWidth];
+
+		PixelBuffer src = new PixelBuffer(workingImage);
+		forEachBand(parallel, (fromY, toY) -> {
+			int[] row = src.newRow();
+			for (int y = fromY; y < toY; ++y) {
+				src.getRow(y, row);
+				if (before != null)
+					before.apply(row, 0, inWidth);
+				resampleRow(row, columns, plane, y * outWidth);
+			}
+		});
+
+		BufferedImage ans = newEmptyOutputSizedImage();
+		PixelBuffer dst = new PixelBuffer(ans);
+		pushForEachParameters();
+		setForEachOutputParameters();
+		forEachBand(parallel, (fromY, toY) -> {
+			int[] row = dst.newRow();
+			int[] alpha = new int[outWidth];
+			int[] red = new int[outWidth];
+			int[] green = new int[outWidth];
+			int[] blue = new int[outWidth];
+			for (int y = fromY; y < toY; ++y) {
+				resampleColumns(plane, rows, y, alpha, red, green, blue, row);
+				if (after != null)
+					after.apply(row, 0, outWidth);
+				dst.putRow(y, row);
+			}
+		});
+		popForEachParameters();
+
+		timer.stop();
+		logger.log("Changing to " + filter.title + " done! (" + throughput(start, (long) outWidth * outHeight) + ")");
+
+		return ans;
+	}
+
+	// the horizontal pass: resamples a packed input row into dst[offset..offset + outWidth).
+	private void resampleRow(int[] row, WeightTable columns, int[] dst, int offset) {
+		int taps = columns.taps;
+		for (int x = 0; x < outWidth; ++x) {
+			int base = columns.first[x];
+			int w = x * taps;
+			int a = 0, r = 0, g = 0, b = 0;
+			for (int t = 0; t < columns.count[x]; ++t) {
+				int rgb = row[base + t];
+				int weight = columns.weights[w + t];
+				a += weight * (rgb >>> 24);
+				r += weight * ((rgb >> 16) & 0xFF);
+				g += weight * ((rgb >> 8) & 0xFF);
+				b += weight * (rgb & 0xFF);
+			}
+			dst[offset + x] = pack(a, r, g, b);
+		}
+	}
+
+	// the vertical pass: output row y, accumulated one plane row at a time so the plane is read in order.
+	private void resampleColumns(int[] plane, WeightTable rows, int y, int[] alpha, int[] red, int[] green,
+			int[] blue, int[] dst) {
+		Arrays.fill(alpha, 0);
+		Arrays.fill(red, 0);
+		Arrays.fill(green, 0);
+		Arrays.fill(blue, 0);
+
+		int taps = rows.taps;
+		for (int t = 0; t < taps; ++t) {
+			int weight = rows.weights[y * taps + t];
+			if (weight == 0)
+				continue;
+
+			int offset = (rows.first[y] + t) * outWidth;
+			for (int x = 0; x < outWidth; ++x) {
+				int rgb = plane[offset + x];
+				alpha[x] += weight * (rgb >>> 24);
+				red[x] += weight * ((rgb >> 16) & 0xFF);
+				green[x] += weight * ((rgb >> 8) & 0xFF);
+				blue[x] += weight * (rgb & 0xFF);
+			}
+		}
+
+		for (int x = 0; x < outWidth; ++x)
+			dst[x] = pack(alpha[x], red[x], green[x], blue[x]);
+	}
+
+	// rounds fixed-point channel sums back to 8 bits, clamping the overshoot of negative weights.
+	private static int pack(int a, int r, int g, int b) {
+		int half = 1 << (WEIGHT_BITS - 1);
+		a = Math.min(255, Math.max(0, (a + half) >> WEIGHT_BITS));
+		r = Math.min(255, Math.max(0, (r + half) >> WEIGHT_BITS));
+		g = Math.min(255, Math.max(0, (g + half) >> WEIGHT_BITS));
+		b = Math.min(255, Math.max(0, (b + half) >> WEIGHT_BITS));
+		return a << 24 | r << 16 | g << 8 | b;
+	}
 }
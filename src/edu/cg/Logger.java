@@ -1,9 +1,72 @@
 package edu.cg;
 
+import java.util.Locale;
+import java.util.function.Supplier;
+
+/*
+ * Where the operations report what they do. Only log(String) has to be implemented;
+ * messages of a level below Level.THRESHOLD are dropped before they are built, so the
+ * per-seam DEBUG messages cost a branch unless -Dcg.log=debug is given.
+ */
 public interface Logger {
+	public static enum Level {
+		DEBUG, INFO, WARNING;
+
+		// The lowest level logged, from -Dcg.log=debug|info|warning; INFO by default.
+		public static final Level THRESHOLD = parse(System.getProperty("cg.log", "info"));
+
+		private static Level parse(String name) {
+			try {
+				return valueOf(name.trim().toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				return INFO;
+			}
+		}
+	}
+
 	public void log(String s);
-	
+
 	public default void log(Object obj) {
 		log(obj == null ? "null" : obj.toString());
 	}
+
+	public default boolean isEnabled(Level level) {
+		return level.compareTo(Level.THRESHOLD) >= 0;
+	}
+
+	public default void log(Level level, String s) {
+		if (isEnabled(level))
+			log(s);
+	}
+
+	// Builds the message only when level is enabled.
+	public default void log(Level level, Supplier<String> message) {
+		if (isEnabled(level))
+			log(level, message.get());
+	}
+
+	public default void debug(Supplier<String> message) {
+		log(Level.DEBUG, message);
+	}
+
+	// This logger, with prefix before every message.
+	public default Logger prefixed(String prefix) {
+		Logger outer = this;
+		return new Logger() {
+			@Override
+			public void log(String s) {
+				outer.log(prefix + s);
+			}
+
+			@Override
+			public boolean isEnabled(Level level) {
+				return outer.isEnabled(level);
+			}
+
+			@Override
+			public void log(Level level, String s) {
+				outer.log(level, prefix + s);
+			}
+		};
+	}
 }
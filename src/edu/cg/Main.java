@@ -5,8 +5,12 @@ public class Main {
 	
 	/**
 	 * Launch the application.
+	 * With arguments, the images are processed headless by BatchProcessor instead.
 	 */
 	public static void main(String[] args) {
+		if (args.length > 0)
+			System.exit(BatchProcessor.run(args));
+
 		MenuWindow mw = new MenuWindow();
 		mw.setVisible(true);
 	}
@@ -0,0 +1,144 @@
+package edu.cg;
+
+import java.awt.Rectangle;
+
+/*
+ * A width x height mask of pixels, packed 64 to a long: pixel (x, y) is bit x % 64 of
+ * word y * wordsPerRow + x / 64. Every row starts at a word boundary, so a row is
+ * copied, cropped or compacted a word at a time, and the bits past the width of a row
+ * are always clear.
+ */
+public final class Mask {
+	// MARK: fields
+	public final int width;
+	public final int height;
+	private final int wordsPerRow;
+	private final long[] words;
+
+	// An empty mask.
+	public Mask(int width, int height) {
+		if (width < 0 | height < 0)
+			throw new IllegalArgumentException("The mask size must not be negative");
+
+		this.width = width;
+		this.height = height;
+		wordsPerRow = (width + 63) >>> 6;
+		words = new long[wordsPerRow * height];
+	}
+
+	private Mask(Mask other) {
+		width = other.width;
+		height = other.height;
+		wordsPerRow = other.wordsPerRow;
+		words = other.words.clone();
+	}
+
+	// A mask of the pixels that are true in mask[y][x].
+	public static Mask of(boolean[][] mask) {
+		Mask ans = new Mask(mask.length == 0 ? 0 : mask[0].length, mask.length);
+		for (int y = 0; y < ans.height; ++y)
+			for (int x = 0; x < ans.width; ++x)
+				if (mask[y][x])
+					ans.set(x, y);
+		return ans;
+	}
+
+	public boolean get(int x, int y) {
+		return (words[y * wordsPerRow + (x >>> 6)] >>> x & 1) != 0;
+	}
+
+	public void set(int x, int y) {
+		words[y * wordsPerRow + (x >>> 6)] |= 1L << x;
+	}
+
+	public void clear(int x, int y) {
+		words[y * wordsPerRow + (x >>> 6)] &= ~(1L << x);
+	}
+
+	public Mask copy() {
+		return new Mask(this);
+	}
+
+	public boolean isEmpty() {
+		for (long word : words)
+			if (word != 0)
+				return false;
+		return true;
+	}
+
+	// The number of pixels in the mask.
+	public long cardinality() {
+		long ans = 0;
+		for (long word : words)
+			ans += Long.bitCount(word);
+		return ans;
+	}
+
+	// The smallest rectangle holding every pixel of the mask, or null for an empty mask.
+	public Rectangle bounds() {
+		int minX = width, maxX = -1, minY = height, maxY = -1;
+		for (int y = 0; y < height; ++y) {
+			int row = y * wordsPerRow;
+			for (int w = 0; w < wordsPerRow; ++w) {
+				long word = words[row + w];
+				if (word == 0)
+					continue;
+				minX = Math.min(minX, (w << 6) + Long.numberOfTrailingZeros(word));
+				maxX = Math.max(maxX, (w << 6) + 63 - Long.numberOfLeadingZeros(word));
+				minY = Math.min(minY, y);
+				maxY = y;
+			}
+		}
+		return maxY < 0 ? null : new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+	}
+
+	// The top left width x height pixels of this mask.
+	public Mask crop(int width, int height) {
+		if (width > this.width | height > this.height)
+			throw new IllegalArgumentException("Can not crop a " + this.width + "x" + this.height + " mask to "
+					+ width + "x" + height);
+
+		Mask ans = new Mask(width, height);
+		for (int y = 0; y < height; ++y) {
+			System.arraycopy(words, y * wordsPerRow, ans.words, y * ans.wordsPerRow, ans.wordsPerRow);
+			if ((width & 63) != 0)
+				ans.words[(y + 1) * ans.wordsPerRow - 1] &= -1L >>> -width;
+		}
+		return ans;
+	}
+
+	// The mask with its rows and columns swapped: pixel (x, y) becomes (y, x).
+	public Mask transposed() {
+		Mask ans = new Mask(height, width);
+		for (int y = 0; y < height; ++y) {
+			int row = y * wordsPerRow;
+			for (int w = 0; w < wordsPerRow; ++w) {
+				// only the set bits are visited, so a sparse mask costs little more than its words
+				for (long word = words[row + w]; word != 0; word &= word - 1)
+					ans.set(y, (w << 6) + Long.numberOfTrailingZeros(word));
+			}
+		}
+		return ans;
+	}
+
+	/*
+	 * Removes pixel x from row y of a row carved down to rowWidth pixels: the pixels
+	 * x + 1 .. rowWidth - 1 move one place to the left, a word at a time, and pixel
+	 * rowWidth - 1 is cleared.
+	 */
+	public void removeColumn(int y, int x, int rowWidth) {
+		int row = y * wordsPerRow;
+		int first = row + (x >>> 6);
+		int last = row + ((rowWidth - 1) >>> 6);
+		long low = (1L << x) - 1;
+		long word = words[first];
+		// the bits below x stay, the ones above it shift down over it
+		words[first] = (word & low) | ((word >>> 1) & ~low);
+		for (int w = first; w < last; ++w) {
+			words[w] |= words[w + 1] << 63;
+			words[w + 1] >>>= 1;
+		}
+		// the bit shifted down from the last word is rowWidth - 1, which is now free
+		words[last] &= ~(1L << (rowWidth - 1));
+	}
+}
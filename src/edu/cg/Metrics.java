@@ -0,0 +1,147 @@
+package edu.cg;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * Per-phase timers and call counters of the image operations and the seam carver.
+ * A phase is timed on the thread that runs it and added to that thread's breakdown;
+ * every job runs on a single thread, so reset() at its start gives the breakdown of
+ * the job alone. Phases nest (initGreyscaleMatrix runs greyscale), so their times
+ * may add up to more than the job took.
+ *
+ * Every phase is also a JDK Flight Recorder event, edu.cg.Phase, which costs nothing
+ * unless a recording enables it (java -XX:StartFlightRecording ...).
+ * With -Dcg.metrics=summary, the breakdown is logged after every job.
+ */
+public final class Metrics {
+	public static enum Phase {
+		CHANGE_HUE("changeHue"),
+		GREYSCALE("greyscale"),
+		POINT_OPERATIONS("pointOperations"),
+		NEAREST_NEIGHBOR("nearestNeighbor"),
+		RESAMPLE("resample"),
+		INIT_GREYSCALE_MATRIX("initGreyscaleMatrix"),
+		INIT_EDGES_MATRIX("initEdgesMatrix"),
+		// the forward-energy dynamic program: filling and updating the cost matrix
+		COST_MATRIX("costMatrix"),
+		// choosing the seams and backtracking them through the cost matrix
+		FIND_MINIMAL_SEAM("findMinimalSeam"),
+		// removing the seams from the carver state and refreshing the energy
+		UPDATE_EDGE_MATRIX("updateEdgeMatrix"),
+		// rendering the carved image
+		REDUCE_IMAGE_SIZE("reduceImageSize");
+
+		public final String title;
+
+		Phase(String title) {
+			this.title = title;
+		}
+	}
+
+	// Whether the breakdown is logged after every job, from -Dcg.metrics=summary.
+	public static final boolean SUMMARY = "summary".equalsIgnoreCase(System.getProperty("cg.metrics", "").trim());
+
+	private static final ThreadLocal<Metrics> CURRENT = ThreadLocal.withInitial(Metrics::new);
+
+	// MARK: fields
+	private final long created;
+	private final long[] nanos;
+	private final long[] calls;
+
+	private Metrics() {
+		created = System.nanoTime();
+		nanos = new long[Phase.values().length];
+		calls = new long[Phase.values().length];
+	}
+
+	// The breakdown of the current thread.
+	public static Metrics current() {
+		return CURRENT.get();
+	}
+
+	// Starts a new breakdown on the current thread, for a new job, and returns it.
+	public static Metrics reset() {
+		Metrics metrics = new Metrics();
+		CURRENT.set(metrics);
+		return metrics;
+	}
+
+	// Starts timing phase; stop() adds it to the breakdown of the current thread.
+	public static Timer start(Phase phase) {
+		return new Timer(phase);
+	}
+
+	public long nanos(Phase phase) {
+		return nanos[phase.ordinal()];
+	}
+
+	public long calls(Phase phase) {
+		return calls[phase.ordinal()];
+	}
+
+	// The time since this breakdown was started.
+	public long elapsedNanos() {
+		return System.nanoTime() - created;
+	}
+
+	// The phases that ran, slowest first, with their share of the elapsed time.
+	public String summary() {
+		long elapsed = elapsedNanos();
+		StringBuilder ans = new StringBuilder(String.format(Locale.ROOT, "%.1f ms", elapsed / 1e6));
+		Phase[] phases = Phase.values().clone();
+		Arrays.sort(phases, (a, b) -> Long.compare(nanos(b), nanos(a)));
+		for (Phase phase : phases) {
+			if (calls(phase) == 0)
+				continue;
+			ans.append(String.format(Locale.ROOT, "%n  %-20s %10.1f ms %5.1f%% %8d calls", phase.title,
+					nanos(phase) / 1e6, 100.0 * nanos(phase) / elapsed, calls(phase)));
+		}
+		return ans.toString();
+	}
+
+	// MARK: A running phase.
+	public static final class Timer {
+		private final Phase phase;
+		private final PhaseEvent event;
+		private final long start;
+
+		private Timer(Phase phase) {
+			this.phase = phase;
+			event = new PhaseEvent();
+			event.begin();
+			start = System.nanoTime();
+		}
+
+		// Ends the phase; a phase that threw (was cancelled) is simply never stopped.
+		public void stop() {
+			long elapsed = System.nanoTime() - start;
+			Metrics metrics = current();
+			metrics.nanos[phase.ordinal()] += elapsed;
+			metrics.calls[phase.ordinal()]++;
+			event.end();
+			if (event.shouldCommit()) {
+				event.phase = phase.title;
+				event.commit();
+			}
+		}
+	}
+
+	// MARK: The Flight Recorder event.
+	@Name("edu.cg.Phase")
+	@Label("Image Phase")
+	@Description("A phase of an image operation or of seam carving")
+	@Category({ "Image Processing" })
+	@StackTrace(false)
+	static final class PhaseEvent extends Event {
+		@Label("Phase")
+		String phase;
+	}
+}
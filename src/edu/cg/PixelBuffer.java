@@ -0,0 +1,158 @@
+package edu.cg;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/*
+ * Row-wise bulk access to the pixels of a BufferedImage, always in the packed 0xAARRGGBB
+ * layout returned by BufferedImage.getRGB.
+ * TYPE_INT_RGB / TYPE_INT_ARGB images are read straight from their DataBufferInt, and
+ * TYPE_3BYTE_BGR / TYPE_4BYTE_ABGR images are unpacked from their DataBufferByte.
+ * Every other image type falls back to the bulk getRGB / setRGB row calls.
+ */
+public class PixelBuffer {
+	private enum Layout {
+		INT_RGB, INT_ARGB, BYTES, GENERIC
+	}
+
+	// MARK: fields
+	public final BufferedImage image;
+	public final int width;
+	public final int height;
+	private final Layout layout;
+	private final int[] ints;
+	private final byte[] bytes;
+	// the element index of pixel (0, 0), the elements per row and per pixel
+	private final int origin;
+	private final int scanline;
+	private final int pixelStride;
+	// the byte offsets of the channels inside a pixel, -1 for a missing alpha channel
+	private final int redOffset, greenOffset, blueOffset, alphaOffset;
+
+	public PixelBuffer(BufferedImage image) {
+		this.image = image;
+		width = image.getWidth();
+		height = image.getHeight();
+
+		WritableRaster raster = image.getRaster();
+		DataBuffer db = raster.getDataBuffer();
+		SampleModel sm = raster.getSampleModel();
+		int type = image.getType();
+		int[] bandOffsets = null;
+
+		if ((type == BufferedImage.TYPE_INT_RGB | type == BufferedImage.TYPE_INT_ARGB)
+				&& db instanceof DataBufferInt && sm instanceof SinglePixelPackedSampleModel) {
+			layout = type == BufferedImage.TYPE_INT_RGB ? Layout.INT_RGB : Layout.INT_ARGB;
+			ints = ((DataBufferInt) db).getData();
+			bytes = null;
+			scanline = ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+			pixelStride = 1;
+		} else if ((type == BufferedImage.TYPE_3BYTE_BGR | type == BufferedImage.TYPE_4BYTE_ABGR)
+				&& db instanceof DataBufferByte && sm instanceof ComponentSampleModel) {
+			layout = Layout.BYTES;
+			ints = null;
+			bytes = ((DataBufferByte) db).getData();
+			scanline = ((ComponentSampleModel) sm).getScanlineStride();
+			pixelStride = ((ComponentSampleModel) sm).getPixelStride();
+			bandOffsets = ((ComponentSampleModel) sm).getBandOffsets();
+		} else {
+			layout = Layout.GENERIC;
+			ints = null;
+			bytes = null;
+			scanline = pixelStride = 0;
+		}
+
+		origin = db.getOffset() - raster.getSampleModelTranslateY() * scanline
+				- raster.getSampleModelTranslateX() * pixelStride;
+		redOffset = bandOffsets == null ? 0 : bandOffsets[0];
+		greenOffset = bandOffsets == null ? 0 : bandOffsets[1];
+		blueOffset = bandOffsets == null ? 0 : bandOffsets[2];
+		alphaOffset = bandOffsets == null || bandOffsets.length < 4 ? -1 : bandOffsets[3];
+	}
+
+	// Reads row y into dst[0..width).
+	public void getRow(int y, int[] dst) {
+		int i = origin + y * scanline;
+		switch (layout) {
+		case INT_RGB:
+			for (int x = 0; x < width; ++x)
+				dst[x] = 0xFF000000 | ints[i + x];
+			break;
+
+		case INT_ARGB:
+			System.arraycopy(ints, i, dst, 0, width);
+			break;
+
+		case BYTES:
+			for (int x = 0; x < width; ++x, i += pixelStride) {
+				int alpha = alphaOffset < 0 ? 0xFF : bytes[i + alphaOffset] & 0xFF;
+				dst[x] = alpha << 24 | (bytes[i + redOffset] & 0xFF) << 16 | (bytes[i + greenOffset] & 0xFF) << 8
+						| (bytes[i + blueOffset] & 0xFF);
+			}
+			break;
+
+		default:
+			image.getRGB(0, y, width, 1, dst, 0, width);
+		}
+	}
+
+	// Reads a single pixel, like BufferedImage.getRGB(x, y).
+	public int getRGB(int x, int y) {
+		int i = origin + y * scanline + x * pixelStride;
+		switch (layout) {
+		case INT_RGB:
+			return 0xFF000000 | ints[i];
+
+		case INT_ARGB:
+			return ints[i];
+
+		case BYTES:
+			int alpha = alphaOffset < 0 ? 0xFF : bytes[i + alphaOffset] & 0xFF;
+			return alpha << 24 | (bytes[i + redOffset] & 0xFF) << 16 | (bytes[i + greenOffset] & 0xFF) << 8
+					| (bytes[i + blueOffset] & 0xFF);
+
+		default:
+			return image.getRGB(x, y);
+		}
+	}
+
+	// Writes src[0..width) into row y.
+	public void putRow(int y, int[] src) {
+		int i = origin + y * scanline;
+		switch (layout) {
+		case INT_RGB:
+			for (int x = 0; x < width; ++x)
+				ints[i + x] = src[x] & 0xFFFFFF;
+			break;
+
+		case INT_ARGB:
+			System.arraycopy(src, 0, ints, i, width);
+			break;
+
+		case BYTES:
+			for (int x = 0; x < width; ++x, i += pixelStride) {
+				int argb = src[x];
+				if (alphaOffset >= 0)
+					bytes[i + alphaOffset] = (byte) (argb >>> 24);
+				bytes[i + redOffset] = (byte) (argb >> 16);
+				bytes[i + greenOffset] = (byte) (argb >> 8);
+				bytes[i + blueOffset] = (byte) argb;
+			}
+			break;
+
+		default:
+			image.setRGB(0, y, width, 1, src, 0, width);
+		}
+	}
+
+	// A helper method that allocates a row buffer matching this image.
+	public int[] newRow() {
+		return new int[width];
+	}
+}
@@ -0,0 +1,279 @@
+package edu.cg;
+
+import java.util.Arrays;
+
+/*
+ * A per-pixel colour operation, compiled to lookup tables and integer matrices so that
+ * a chain of them runs as a single pass over the raster.
+ *
+ * Every operation is a list of stages. A stage maps each channel through a 256-entry
+ * lookup table, optionally mixes the three channels with a 3x3 integer matrix (rounding
+ * down and clamping to 0..255), and then maps each channel through a second table.
+ * andThen() fuses as much as it can: two tables compose into one, and a table before a
+ * matrix folds into it. Only a matrix after a matrix starts a new stage, since the
+ * rounding between them can not be expressed by one matrix. All the stages of a row are
+ * run while the row is in the cache, so the raster is read and written once whatever
+ * the chain.
+ *
+ * The results are exactly those of the ImageProcessor operations they stand for, and
+ * the alpha channel is made opaque, as there.
+ */
+public final class PointOperation implements RowKernel {
+	private static final int[] IDENTITY = new int[256];
+	static {
+		Arrays.setAll(IDENTITY, v -> v);
+	}
+
+	// The largest absolute matrix entry, so that a mixed channel stays below 1 << SUM_BITS.
+	public static final int MAX_MATRIX_ENTRY = 1 << 20;
+	private static final int SUM_BITS = 30;
+
+	// MARK: fields
+	private final Stage[] stages;
+	private final int operations;
+
+	private PointOperation(Stage[] stages, int operations) {
+		this.stages = stages;
+		this.operations = operations;
+	}
+
+	// MARK: Factories
+	public static PointOperation identity() {
+		return new PointOperation(new Stage[] { new Stage(IDENTITY, IDENTITY, IDENTITY, null, 1, null, null, null) },
+				0);
+	}
+
+	// Maps every channel through its own table of 256 values in 0..255.
+	public static PointOperation lookup(int[] red, int[] green, int[] blue) {
+		return new PointOperation(
+				new Stage[] { new Stage(checkTable(red), checkTable(green), checkTable(blue), null, 1, null, null, null) },
+				1);
+	}
+
+	/*
+	 * Mixes the channels: (red, green, blue) becomes matrix * (red, green, blue) / divisor,
+	 * rounded down and clamped to 0..255. The matrix is row-major, 9 entries.
+	 */
+	public static PointOperation matrix(int[] matrix, int divisor) {
+		if (matrix.length != 9)
+			throw new IllegalArgumentException("A colour matrix has 9 entries");
+		if (divisor < 1)
+			throw new IllegalArgumentException("The divisor must be positive");
+		for (int m : matrix)
+			if (Math.abs(m) > MAX_MATRIX_ENTRY)
+				throw new IllegalArgumentException("Matrix entries must be within +-" + MAX_MATRIX_ENTRY);
+
+		return new PointOperation(
+				new Stage[] { new Stage(IDENTITY, IDENTITY, IDENTITY, matrix.clone(), divisor, null, null, null) }, 1);
+	}
+
+	// ImageProcessor.changeHue: every channel scaled by its weight over the largest weight.
+	public static PointOperation changeHue(RGBWeights rgbWeights) {
+		int max = rgbWeights.maxWeight;
+		int[] red = new int[256];
+		int[] green = new int[256];
+		int[] blue = new int[256];
+		for (int v = 0; v < 256; ++v) {
+			red[v] = rgbWeights.redWeight * v / max;
+			green[v] = rgbWeights.greenWeight * v / max;
+			blue[v] = rgbWeights.blueWeight * v / max;
+		}
+		return lookup(red, green, blue);
+	}
+
+	// ImageProcessor.greyscale: the weighted average of the channels, in every channel.
+	public static PointOperation greyscale(RGBWeights rgbWeights) {
+		int r = rgbWeights.redWeight;
+		int g = rgbWeights.greenWeight;
+		int b = rgbWeights.blueWeight;
+		return matrix(new int[] { r, g, b, r, g, b, r, g, b }, rgbWeights.weightsAmount);
+	}
+
+	private static int[] checkTable(int[] table) {
+		if (table.length != 256)
+			throw new IllegalArgumentException("A lookup table has 256 entries");
+		for (int v : table)
+			if (v < 0 | v > 255)
+				throw new IllegalArgumentException("Lookup table values must be within 0..255");
+		return table.clone();
+	}
+
+	// MARK: Composition
+	// This operation and then next, fused into as few stages as possible.
+	public PointOperation andThen(PointOperation next) {
+		Stage[] ans = Arrays.copyOf(stages, stages.length + next.stages.length);
+		int length = stages.length;
+		for (Stage stage : next.stages) {
+			Stage fused = ans[length - 1].andThen(stage);
+			if (fused != null)
+				ans[length - 1] = fused;
+			else
+				ans[length++] = stage;
+		}
+		return new PointOperation(Arrays.copyOf(ans, length), operations + next.operations);
+	}
+
+	// The number of operations composed into this one.
+	public int operations() {
+		return operations;
+	}
+
+	// The number of stages left after fusing; 1 unless a matrix follows a matrix.
+	public int stages() {
+		return stages.length;
+	}
+
+	// MARK: RowKernel
+	@Override
+	public void apply(int[] row, int from, int to) {
+		for (Stage stage : stages)
+			stage.apply(row, from, to);
+	}
+
+	/*
+	 * Input tables, an optional matrix and optional output tables (null for the identity,
+	 * and always null without a matrix, since they fold into the input tables then).
+	 * The tables are compiled once: without a matrix, into three tables of the shifted
+	 * channel values, or'ed together; with one, into a table per matrix entry that holds
+	 * the entry times the input table, so a mixed channel is three lookups, an add and a
+	 * multiplication by the reciprocal of the divisor.
+	 */
+	private static final class Stage {
+		final int[] red;
+		final int[] green;
+		final int[] blue;
+		final int[] matrix;
+		final int divisor;
+		final int[] outRed;
+		final int[] outGreen;
+		final int[] outBlue;
+
+		// without a matrix: the channel tables, pre-shifted to their place in the pixel.
+		private final int[] shiftedRed;
+		private final int[] shiftedGreen;
+		private final int[] shiftedBlue;
+		// with a matrix: products[(k * 3 + c) * 256 + v] = matrix[k * 3 + c] * table c [v].
+		private final int[] products;
+		// whether the three matrix rows are equal, as for greyscale; then one row is mixed.
+		private final boolean equalRows;
+		// with equal rows: the grey pixel of every mixed value, through the output table.
+		private final int[] greyPixels;
+		// the division by divisor as a multiplication: ceil(2^shift / divisor), exact below 2^SUM_BITS.
+		private final long reciprocal;
+		private final int shift;
+
+		Stage(int[] red, int[] green, int[] blue, int[] matrix, int divisor, int[] outRed, int[] outGreen,
+				int[] outBlue) {
+			this.red = red;
+			this.green = green;
+			this.blue = blue;
+			this.matrix = matrix;
+			this.divisor = divisor;
+			this.outRed = outRed;
+			this.outGreen = outGreen;
+			this.outBlue = outBlue;
+			shift = SUM_BITS + 32 - Integer.numberOfLeadingZeros(divisor - 1);
+			reciprocal = ((1L << shift) + divisor - 1) / divisor;
+
+			if (matrix == null) {
+				shiftedRed = new int[256];
+				shiftedGreen = new int[256];
+				shiftedBlue = new int[256];
+				for (int v = 0; v < 256; ++v) {
+					shiftedRed[v] = 0xFF000000 | red[v] << 16;
+					shiftedGreen[v] = green[v] << 8;
+					shiftedBlue[v] = blue[v];
+				}
+				products = null;
+				equalRows = false;
+				greyPixels = null;
+			} else {
+				shiftedRed = shiftedGreen = shiftedBlue = null;
+				products = new int[9 * 256];
+				int[][] tables = { red, green, blue };
+				for (int e = 0; e < 9; ++e)
+					for (int v = 0; v < 256; ++v)
+						products[e * 256 + v] = matrix[e] * tables[e % 3][v];
+				equalRows = Arrays.equals(matrix, 0, 3, matrix, 3, 6) && Arrays.equals(matrix, 0, 3, matrix, 6, 9)
+						&& Arrays.equals(outRed, outGreen) && Arrays.equals(outGreen, outBlue);
+				greyPixels = new int[256];
+				for (int v = 0; v < 256; ++v) {
+					int grey = outRed == null ? v : outRed[v];
+					greyPixels[v] = 0xFF000000 | grey << 16 | grey << 8 | grey;
+				}
+			}
+		}
+
+		// This stage and then next as a single stage, or null when they do not fuse.
+		Stage andThen(Stage next) {
+			if (matrix == null)
+				return new Stage(compose(red, next.red), compose(green, next.green), compose(blue, next.blue),
+						next.matrix, next.divisor, next.outRed, next.outGreen, next.outBlue);
+			if (next.matrix == null)
+				return new Stage(red, green, blue, matrix, divisor, compose(outRed, next.red),
+						compose(outGreen, next.green), compose(outBlue, next.blue));
+			return null;
+		}
+
+		// first and then second; a null first is the identity.
+		private static int[] compose(int[] first, int[] second) {
+			if (first == null)
+				return second;
+
+			int[] ans = new int[256];
+			for (int v = 0; v < 256; ++v)
+				ans[v] = second[first[v]];
+			return ans;
+		}
+
+		void apply(int[] row, int from, int to) {
+			if (matrix == null)
+				lookup(row, from, to);
+			else if (equalRows)
+				mixEqualRows(row, from, to);
+			else
+				mix(row, from, to);
+		}
+
+		private void lookup(int[] row, int from, int to) {
+			int[] r = shiftedRed;
+			int[] g = shiftedGreen;
+			int[] b = shiftedBlue;
+			for (int x = from; x < to; ++x) {
+				int rgb = row[x];
+				row[x] = r[(rgb >> 16) & 0xFF] | g[(rgb >> 8) & 0xFF] | b[rgb & 0xFF];
+			}
+		}
+
+		private void mixEqualRows(int[] row, int from, int to) {
+			int[] p = products;
+			int[] grey = greyPixels;
+			for (int x = from; x < to; ++x) {
+				int rgb = row[x];
+				row[x] = grey[divide(p[(rgb >> 16) & 0xFF] + p[256 + ((rgb >> 8) & 0xFF)] + p[512 + (rgb & 0xFF)])];
+			}
+		}
+
+		private void mix(int[] row, int from, int to) {
+			int[] p = products;
+			int[] outR = outRed == null ? IDENTITY : outRed;
+			int[] outG = outGreen == null ? IDENTITY : outGreen;
+			int[] outB = outBlue == null ? IDENTITY : outBlue;
+			for (int x = from; x < to; ++x) {
+				int rgb = row[x];
+				int r = (rgb >> 16) & 0xFF;
+				int g = (rgb >> 8) & 0xFF;
+				int b = rgb & 0xFF;
+				int red = outR[divide(p[r] + p[256 + g] + p[512 + b])];
+				int green = outG[divide(p[768 + r] + p[1024 + g] + p[1280 + b])];
+				int blue = outB[divide(p[1536 + r] + p[1792 + g] + p[2048 + b])];
+				row[x] = 0xFF000000 | red << 16 | green << 8 | blue;
+			}
+		}
+
+		// sum / divisor, rounded down and clamped to 0..255.
+		private int divide(int sum) {
+			return (int) Math.min(255, (Math.max(0, sum) * reciprocal) >>> shift);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package edu.cg;
+
+import java.util.concurrent.CancellationException;
+
+/*
+ * Receives the progress of a long operation and tells it when to stop. An operation
+ * begins a task with the total amount of work (rows, seams), reports the work done as
+ * it goes, from any thread, and polls isCancelled between units of work; cancellation
+ * is cooperative, the operation then throws a CancellationException.
+ */
+public interface ProgressMonitor {
+	// A monitor that ignores the progress and is never cancelled.
+	public static final ProgressMonitor NONE = new ProgressMonitor() {
+		@Override
+		public void begin(String task, long total) {
+		}
+
+		@Override
+		public void worked(long units) {
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+	};
+
+	// Starts a new task of total units of work; the work done so far is reset.
+	void begin(String task, long total);
+
+	// Adds units to the work done of the current task; may be called concurrently.
+	void worked(long units);
+
+	boolean isCancelled();
+
+	public default void checkCancelled() {
+		if (isCancelled())
+			throw new CancellationException("cancelled");
+	}
+
+	// This monitor's cancellation alone, for the inner loops of an operation that reports its own progress.
+	public default ProgressMonitor cancellationOnly() {
+		ProgressMonitor outer = this;
+		return this == NONE ? NONE : new ProgressMonitor() {
+			@Override
+			public void begin(String task, long total) {
+			}
+
+			@Override
+			public void worked(long units) {
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return outer.isCancelled();
+			}
+		};
+	}
+}
@@ -0,0 +1,15 @@
+package edu.cg;
+
+// An operation on the packed 0xAARRGGBB pixels row[from..to), in place.
+@FunctionalInterface
+public interface RowKernel {
+	void apply(int[] row, int from, int to);
+
+	// Applies this kernel and then next.
+	public default RowKernel andThen(RowKernel next) {
+		return (row, from, to) -> {
+			apply(row, from, to);
+			next.apply(row, from, to);
+		};
+	}
+}
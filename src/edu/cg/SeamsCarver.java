@@ -1,8 +1,12 @@
 package edu.cg;
 
-import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import edu.cg.Metrics.Phase;
 
 public class SeamsCarver extends ImageProcessor {
 
@@ -12,331 +16,1194 @@ public class SeamsCarver extends ImageProcessor {
 		BufferedImage resize();
 	}
 
+	// The direction in which seams run through the image.
+	public static enum Orientation {
+		VERTICAL("vertical"), HORIZONTAL("horizontal");
+
+		public final String title;
+
+		Orientation(String title) {
+			this.title = title;
+		}
+	}
+
 	// MARK: Fields
 	private int numOfSeams;
 	private ResizeOperation resizeOp;
-	boolean[][] imageMask;
-	ArrayList<Pixel>[] edges;
-	int[][] greyScale;
-	boolean[][] seamsMatrix;
+	private final CarvingOptions options;
+	// read from the mask handle and never written
+	Mask imageMask;
+	/*
+	 * The seam rank map: for every pixel of workingImage (y * inWidth + x), the 1-based
+	 * number of the seam that removed it, in removal order, or 0 for a pixel that was kept.
+	 * A carver of a single orientation can produce any size between the input size and
+	 * the size after all its seams from this map alone, in one gather pass.
+	 */
+	int[] seamRank;
+	private int seamsFound;
+	// the orientation of the seams found, or null when both the width and the height were carved
+	private Orientation rankOrientation;
+
+	// MARK: Carver state
+	/*
+	 * The carver state is kept as flat, row-major primitive arrays in a carving layout,
+	 * in which seams always run from the top row to the bottom one: for vertical seams
+	 * the layout is the image itself, for horizontal seams it is the image transposed.
+	 * Every layout row has a fixed stride, and only its first curWidth entries are valid:
+	 * removing a seam shifts the tail of every row one place to the left.
+	 * origIndex maps a cell back to its pixel (y * inWidth + x) in workingImage, and
+	 * masked is the mask in the same layout, a stride x rows Mask compacted with the rest.
+	 */
+	Orientation orientation;
+	int rows;
+	int stride;
+	int curWidth;
+	int[] grey;
+	int[] energy;
+	int[] origIndex;
+	Mask masked;
+	// the cumulative cost matrix, allocated once per layout and carved together with the rest of the state
+	long[] costMat;
+	private long cellsRecomputed;
+	private long removedCost;
+	private int passes;
+	private long pyramidExcessCost;
+	private long exactCost;
 
-	// the last seam that was found
+	// the last seam that was found, as indices into the carved layout
 	int[] lastSeam;
 
 	public SeamsCarver(Logger logger, BufferedImage workingImage, int outWidth, RGBWeights rgbWeights,
-					   boolean[][] imageMask) {
-		super((s) -> logger.log("Seam carving: " + s), workingImage, rgbWeights, outWidth, workingImage.getHeight());
+					   Mask imageMask) {
+		this(logger, workingImage, outWidth, rgbWeights, imageMask, CarvingOptions.DEFAULT);
+	}
+
+	public SeamsCarver(Logger logger, BufferedImage workingImage, int outWidth, RGBWeights rgbWeights,
+					   Mask imageMask, CarvingOptions options) {
+		this(logger, workingImage, Orientation.VERTICAL, outWidth, rgbWeights, imageMask, options);
+	}
+
+	// Carves seams of a single orientation; outSize is the output width or height respectively.
+	public SeamsCarver(Logger logger, BufferedImage workingImage, Orientation orientation, int outSize,
+					   RGBWeights rgbWeights, Mask imageMask, CarvingOptions options) {
+		this(logger, workingImage,
+				orientation == Orientation.VERTICAL ? outSize : workingImage.getWidth(),
+				orientation == Orientation.HORIZONTAL ? outSize : workingImage.getHeight(),
+				rgbWeights, imageMask, options);
+	}
 
-		numOfSeams = Math.abs(outWidth - inWidth);
-		this.imageMask = imageMask;
+	public SeamsCarver(Logger logger, BufferedImage workingImage, int outWidth, int outHeight,
+					   RGBWeights rgbWeights, Mask imageMask, CarvingOptions options) {
+		this(logger, CopyOnWrite.image(workingImage).share(), outWidth, outHeight, rgbWeights,
+				CopyOnWrite.mask(imageMask).share(), options);
+	}
+
+	/*
+	 * Carves the width with vertical seams and then the height with horizontal seams.
+	 * Both passes work on the same carver state: after the first pass the state is
+	 * transposed, so the grey levels and the mask are carried over as they are.
+	 * The image and the mask are only read, so shared handles are never copied.
+	 */
+	public SeamsCarver(Logger logger, CopyOnWrite<BufferedImage> image, int outWidth, int outHeight,
+					   RGBWeights rgbWeights, CopyOnWrite<Mask> mask, CarvingOptions options) {
+		super(logger.prefixed("Seam carving: "), image, rgbWeights, outWidth, outHeight);
+
+		this.options = options;
+		// the inner loops only poll for cancellation; the progress is counted in seams.
+		setProgressMonitor(options.progressMonitor().cancellationOnly());
+		int widthSeams = Math.abs(outWidth - inWidth);
+		int heightSeams = Math.abs(outHeight - inHeight);
+		numOfSeams = widthSeams + heightSeams;
+		this.imageMask = mask.read();
 		if (inWidth < 2 | inHeight < 2)
 			throw new RuntimeException("Can not apply seam carving: workingImage is too small");
 
-		if (numOfSeams > inWidth / 2)
+		if (imageMask.width != inWidth | imageMask.height != inHeight)
+			throw new RuntimeException("Can not apply seam carving: the mask is not " + inWidth + "x" + inHeight);
+
+		if (outHeight > inHeight)
+			throw new IllegalArgumentException("Can not apply seam carving: the height can only be reduced");
+
+		if (widthSeams > inWidth / 2 | heightSeams > inHeight / 2)
 			throw new RuntimeException("Can not apply seam carving: too many seams...");
 
 		// Setting resizeOp by with the appropriate method reference
 		if (outWidth > inWidth)
 			resizeOp = this::increaseImageWidth;
-		else if (outWidth < inWidth)
-			resizeOp = this::reduceImageWidth;
+		else if (numOfSeams > 0)
+			resizeOp = this::reduceImageSize;
 		else
 			resizeOp = this::duplicateWorkingImage;
 
 		if (numOfSeams > 0) {
+			options.progressMonitor().begin("Seam carving", numOfSeams);
+			setLayout(widthSeams > 0 ? Orientation.VERTICAL : Orientation.HORIZONTAL);
 			initGreyscaleMatrix();
-        /* init a matrix (might need to make it as a dynamic matrix) to represent the gradient magnitude
-		 aka the "edges" of the image.
-		 remember: work on the grayscale image and use forward differencing
-		*/
-			try {
-				initEdgesMatrix();
-			} catch (Exception e) {
-				System.out.println("exeption here!");
-			}
+			// init the gradient magnitude ("edges") of the greyscale image, using forward differencing.
+			initEdgesMatrix();
 			// init some data structure to store all the k seams.
 			initSeamsVars();
 
-			// find the 𝑘 most minimal seams
-			findKSeams();
+			// find the k most minimal seams
+			if (widthSeams > 0)
+				findKSeams(widthSeams);
+			if (heightSeams > 0) {
+				if (orientation == Orientation.VERTICAL)
+					transposeState();
+				findKSeams(heightSeams);
+			}
+			// only a reduction is rendered from the rank map; enlarging keeps its own resizeOp.
+			if ((widthSeams == 0 | heightSeams == 0) && outWidth <= inWidth) {
+				rankOrientation = orientation;
+				int target = orientation == Orientation.VERTICAL ? outWidth : outHeight;
+				resizeOp = () -> resize(target);
+			}
 		}
 
-
 		this.logger.log("preliminary calculations were ended.");
 	}
 
+	// sets the carving layout of a fresh state for seams of the given orientation.
+	private void setLayout(Orientation orientation) {
+		this.orientation = orientation;
+		rows = orientation == Orientation.VERTICAL ? inHeight : inWidth;
+		stride = curWidth = orientation == Orientation.VERTICAL ? inWidth : inHeight;
+	}
+
+	// the layout index of pixel (x, y) of the image carved so far.
+	private int layoutIndex(int x, int y) {
+		return orientation == Orientation.VERTICAL ? y * stride + x : x * stride + y;
+	}
+
 	private void initGreyscaleMatrix() {
+		Metrics.Timer timer = Metrics.start(Phase.INIT_GREYSCALE_MATRIX);
 		// get the grayscale image
-		BufferedImage greyImg = this.greyscale();
-		this.greyScale = new int[inHeight][inWidth];
+		PixelBuffer greyImg = new PixelBuffer(this.greyscale());
+		this.grey = new int[inHeight * inWidth];
+		int[] row = greyImg.newRow();
 
-		forEach((y, x) -> {
-			Color c = new Color(greyImg.getRGB(x, y));
-			this.greyScale[y][x] = c.getRed();
+		forEachHeight(y -> {
+			greyImg.getRow(y, row);
+			for (int x = 0; x < inWidth; x++)
+				this.grey[layoutIndex(x, y)] = row[x] & 0xFF;
 		});
+		timer.stop();
 	}
 
 	private void initEdgesMatrix() {
 		this.logger.log("initializing Edges Matrix");
-		edges = new ArrayList[inHeight];
+		Metrics.Timer timer = Metrics.start(Phase.INIT_EDGES_MATRIX);
+		energy = new int[inHeight * inWidth];
+		origIndex = new int[inHeight * inWidth];
+		// word copies for vertical seams; only the set bits are moved for horizontal ones.
+		masked = orientation == Orientation.VERTICAL ? imageMask.copy() : imageMask.transposed();
+		costMat = new long[inHeight * inWidth];
+
+		forEach((y, x) -> origIndex[layoutIndex(x, y)] = y * inWidth + x);
+		updateEnergyFully();
+		timer.stop();
+		this.logger.log("Finished initializind Edges Matrix");
+	}
 
-		// create the initial Edges matrix
-		for (int y = 0; y < inHeight; y++) {
-			edges[y] = new ArrayList<>();
+	private void initSeamsVars() {
+		this.seamRank = new int[inHeight * inWidth];
+		this.lastSeam = new int[rows];
+	}
 
-			for (int x = 0; x < inWidth; x++) {
-				Pixel pixel = new Pixel(x, y, greyScale[y][x]);
-				pixel.magnitude = calcMagnitude(pixel);
-				edges[y].add(pixel);
+	/*
+	 * Switches a state carved with vertical seams to the layout of horizontal seams.
+	 * The carved image is curWidth x rows, so the new layout has curWidth rows of rows
+	 * cells each. The forward-difference magnitude is symmetric in dx and dy, so the
+	 * energy is transposed along with the grey levels rather than recomputed; only the
+	 * cost matrix has to be filled again, as the seams now run the other way.
+	 * The int planes are transposed through a single spare buffer, and the cost matrix
+	 * keeps its allocation, since the carved layout is never larger than the original.
+	 */
+	private void transposeState() {
+		int newRows = curWidth;
+		int newStride = rows;
+		int[] spare = new int[newRows * newStride];
+		int[] old;
+		transpose(grey, spare, newStride);
+		old = grey;
+		grey = spare;
+		spare = old;
+		transpose(energy, spare, newStride);
+		old = energy;
+		energy = spare;
+		spare = old;
+		transpose(origIndex, spare, newStride);
+		origIndex = spare;
+
+		Mask newMasked = masked.crop(curWidth, rows).transposed();
+
+		orientation = Orientation.HORIZONTAL;
+		rows = newRows;
+		stride = curWidth = newStride;
+		masked = newMasked;
+		lastSeam = new int[rows];
+		assert energyMatchesFullRecompute() : "the transposed energy differs from a full recompute";
+	}
+
+	// Transposes the valid part of a carved plane into dst, laid out with newStride.
+	private void transpose(int[] plane, int[] dst, int newStride) {
+		for (int y = 0; y < rows; y++) {
+			for (int x = 0; x < curWidth; x++) {
+				dst[x * newStride + y] = plane[y * stride + x];
 			}
 		}
-		this.logger.log("Finished initializind Edges Matrix");
 	}
 
-	private void initSeamsVars() {
-		this.seamsMatrix = new boolean[inHeight][inWidth];
-		this.lastSeam = new int[inHeight];
+	/*
+	 * Forward differencing on the carved layout: the right neighbour (or the left one in
+	 * the last column) and the neighbour below (or above in the last row). A layout
+	 * carved down to a single column (or row) has no neighbour that way, so dx (or dy)
+	 * is 0 there.
+	 */
+	private int calcMagnitude(int y, int x) {
+		int i = y * stride + x;
+		int g = grey[i];
+		int dx = curWidth == 1 ? 0 : (x < curWidth - 1 ? grey[i + 1] : grey[i - 1]) - g;
+		int dy = rows == 1 ? 0 : (y < rows - 1 ? grey[i + stride] : grey[i - stride]) - g;
+		return (int) Math.sqrt(dx * dx + dy * dy);
 	}
 
-	private int calcMagnitude(Pixel pixel) {
-		int magnitude;
-		if(pixel.y == inHeight -1 && pixel.x == inWidth -1 ) {
-			magnitude = (int)Math.sqrt(Math.pow(this.greyScale[pixel.y][pixel.x-1]- this.greyScale[pixel.y][pixel.x], 2) + (Math.pow(this.greyScale[pixel.y-1][pixel.x] - this.greyScale[pixel.y][pixel.x], 2)));
+	/**
+	 * get the pixels energy considering his magnitude and mask value.
+	 */
+	long getPixelEnergy(int y, int x) {
+		int i = y * stride + x;
+		return masked.get(x, y) ? (long) energy[i] + (long) Integer.MIN_VALUE : energy[i];
+	}
+
+	private void findKSeams(int seamsToFind) {
+		this.logger.log("Finding " + seamsToFind + " " + orientation.title + " seams");
+		int pyramidFactor = pyramidFactor(seamsToFind);
+		if (pyramidFactor > 1) {
+			findSeamsOnPyramid(seamsToFind, pyramidFactor);
+		} else if (options.seamsPerPass() > 1) {
+			findSeamsInPasses(seamsToFind);
+		} else {
+			fillCostMatrix();
+			for (int i = 0; i < seamsToFind; i++) {
+				findMinimalSeam();
+				updateEdgeMatrix();
+				if (i < seamsToFind - 1)
+					updateCostMatrix();
+			}
 		}
-		else {
-			if (pixel.x == inWidth - 1) {
-				magnitude = (int) Math.sqrt(Math.pow(this.greyScale[pixel.y][pixel.x - 1] - this.greyScale[pixel.y][pixel.x], 2) + (Math.pow(this.greyScale[pixel.y + 1][pixel.x] - this.greyScale[pixel.y][pixel.x], 2)));
-			} else {
-				if (pixel.y == inHeight - 1) {
-					magnitude = (int) Math.sqrt((this.greyScale[pixel.y][pixel.x + 1] - this.greyScale[pixel.y][pixel.x]) + (Math.pow(this.greyScale[pixel.y - 1][pixel.x] - this.greyScale[pixel.y][pixel.x], 2)));
-				} else {
-					magnitude = (int) Math.sqrt(Math.pow(this.greyScale[pixel.y][pixel.x + 1] - this.greyScale[pixel.y][pixel.x], 2) + (Math.pow(this.greyScale[pixel.y + 1][pixel.x] - this.greyScale[pixel.y][pixel.x], 2)));
-				}
+		this.logger.log("Found " + seamsToFind + " seams! removed cost: " + removedCost);
+		this.logger.log("Recomputed " + (long) getCellsRecomputedPerSeam() + " of " + stride * rows
+				+ " cost cells per seam on average");
+	}
+
+	private void updateEdgeMatrix() {
+		this.logger.debug(() -> "updating Edges Matrix");
+		Metrics.Timer timer = Metrics.start(Phase.UPDATE_EDGE_MATRIX);
+		removeLastSeam();
+		if (options.incrementalEnergy())
+			updateEnergyAroundLastSeam();
+		else
+			updateEnergyFully();
+		assert energyMatchesFullRecompute() : "incremental energy update diverged from a full recompute";
+		timer.stop();
+		this.logger.debug(() -> "Finished updating Edges Matrix");
+	}
+
+	//calc new magnitude for the whole carved edges matrix
+	private void updateEnergyFully() {
+		for (int y = 0; y < rows; y++) {
+			for (int x = 0; x < curWidth; x++) {
+				energy[y * stride + x] = calcMagnitude(y, x);
 			}
 		}
-		return magnitude;
 	}
 
+	/*
+	 * After the compaction, a pixel's right neighbour changes only at lastSeam[y] - 1, and
+	 * its lower (upper, in the last row) neighbour changes only between lastSeam[y] and
+	 * the seam column of that neighbouring row. Seams are 8-connected, so both cases
+	 * stay within the columns lastSeam[y] - 1 and lastSeam[y].
+	 */
+	private void updateEnergyAroundLastSeam() {
+		for (int y = 0; y < rows; y++) {
+			int from = Math.max(lastSeam[y] - 1, 0);
+			int to = Math.min(lastSeam[y], curWidth - 1);
+			for (int x = from; x <= to; x++) {
+				energy[y * stride + x] = calcMagnitude(y, x);
+			}
+		}
+	}
 
-		private int updateMagnitude (Pixel pixel, int eX,int eY){
-			int magnitude, xMinus1, yMinus1, xPlus1, yPlus1;
-			if (eY == this.edges.length - 1 && eX ==this.edges[0].size() - 1) {
-				xMinus1 = edges[eY].get(eX - 1).x;
-				yMinus1 = edges[eY - 1].get(eX).y;
-				magnitude = (int) Math.sqrt(Math.pow(this.greyScale[pixel.y][xMinus1] - this.greyScale[pixel.y][pixel.x], 2) + (Math.pow(this.greyScale[yMinus1][pixel.x] - this.greyScale[pixel.y][pixel.x], 2)));
-			} else {
-				if (eX == this.edges[0].size() - 1) {
-					xMinus1 = edges[eY].get(eX - 1).x;
-					yPlus1 = edges[eY + 1].get(eX).y;
-					magnitude = (int) Math.sqrt(Math.pow(this.greyScale[pixel.y][xMinus1] - this.greyScale[pixel.y][pixel.x], 2) + (Math.pow(this.greyScale[yPlus1][xMinus1] - this.greyScale[pixel.y][pixel.x], 2)));
-				} else {
-					if (eY == this.edges.length - 1) {
-						xPlus1 = edges[eY].get(eX + 1).x;
-						yMinus1 = edges[eY - 1].get(eX).y;
-						magnitude = (int) Math.sqrt((this.greyScale[pixel.y][xPlus1] - this.greyScale[pixel.y][pixel.x]) + (Math.pow(this.greyScale[yMinus1][pixel.x] - this.greyScale[pixel.y][pixel.x], 2)));
-					} else {
-						xPlus1 = edges[eY].get(eX + 1).x;
-						yPlus1 = edges[eY + 1].get(eX).y;
-						magnitude = (int) Math.sqrt(Math.pow(this.greyScale[pixel.y][xPlus1] - this.greyScale[pixel.y][pixel.x], 2) + (Math.pow(this.greyScale[yPlus1][pixel.x] - this.greyScale[pixel.y][pixel.x], 2)));
-					}
-				}
+	// a debug check (enabled with -ea) for the incremental update mode.
+	private boolean energyMatchesFullRecompute() {
+		for (int y = 0; y < rows; y++) {
+			for (int x = 0; x < curWidth; x++) {
+				if (energy[y * stride + x] != calcMagnitude(y, x))
+					return false;
 			}
-			return magnitude;
 		}
+		return true;
+	}
+
+	// remove lastSeam from the carver state by compacting every row.
+	private void removeLastSeam() {
+		for (int y = 0; y < rows; y++) {
+			int from = y * stride + lastSeam[y] + 1;
+			int len = curWidth - lastSeam[y] - 1;
+			System.arraycopy(grey, from, grey, from - 1, len);
+			System.arraycopy(energy, from, energy, from - 1, len);
+			System.arraycopy(origIndex, from, origIndex, from - 1, len);
+			masked.removeColumn(y, lastSeam[y], curWidth);
+			System.arraycopy(costMat, from, costMat, from - 1, len);
+		}
+		curWidth--;
+	}
+
+	// fill the whole cost matrix for the current carved layout.
+	private void fillCostMatrix() {
+		Metrics.Timer timer = Metrics.start(Phase.COST_MATRIX);
+		for (int y = 0; y < rows; y++) {
+			sweepRow(y, 0, curWidth - 1);
+		}
+		cellsRecomputed += (long) rows * curWidth;
+		timer.stop();
+	}
 
-		private void findKSeams () {
-			this.logger.log("Finding" + this.numOfSeams + "seams");
-			for (int i = 0; i < numOfSeams; i++) {
-				findMinimalSeam(i);
-				try {
-                    updateEdgeMatrix();
-                }catch(Exception e){
-                    System.out.println("exception here2");
-                }
+	private void updateCostMatrix() {
+		if (options.incrementalCost())
+			updateCostMatrixAroundLastSeam();
+		else
+			fillCostMatrix();
+		assert costMatchesFullRecompute() : "incremental cost update diverged from a full recompute";
+	}
+
+	/*
+	 * The cost matrix was compacted together with the rest of the state, so a cell can
+	 * only change if its energy, its forward-energy terms or the alignment of its three
+	 * predecessors changed (all within lastSeam[y] - 2 .. lastSeam[y] + 1), or if one of
+	 * its predecessors changed. The second case is tracked row by row, so the recomputed
+	 * cone stops growing as soon as a row comes out unchanged.
+	 */
+	private void updateCostMatrixAroundLastSeam() {
+		Metrics.Timer timer = Metrics.start(Phase.COST_MATRIX);
+		int changedFrom = Integer.MAX_VALUE;
+		int changedTo = Integer.MIN_VALUE;
+		for (int y = 0; y < rows; y++) {
+			int from = lastSeam[y] - 2;
+			int to = lastSeam[y] + 1;
+			if (changedFrom <= changedTo) {
+				from = Math.min(from, changedFrom - 1);
+				to = Math.max(to, changedTo + 1);
 			}
-			this.logger.log("Founded" + this.numOfSeams + "seams!");
+			from = Math.max(from, 0);
+			to = Math.min(to, curWidth - 1);
+
+			long changed = sweepRow(y, from, to);
+			changedFrom = rangeFrom(changed);
+			changedTo = rangeTo(changed);
+			cellsRecomputed += to - from + 1;
 		}
+		timer.stop();
+	}
 
+	/*
+	 * Computes the cost cells from..to of row y and returns the range of cells whose
+	 * value changed (see packRange). Every cell depends only on the row above, so wide
+	 * rows can be split across the common ForkJoinPool; the cells get exactly the same
+	 * values either way, hence the same seam.
+	 */
+	private long sweepRow(int y, int from, int to) {
+		if (options.parallelCost() && to - from + 1 >= 2 * options.minChunkWidth())
+			return ForkJoinPool.commonPool().invoke(new RowSweep(y, from, to));
+		return sweepRowSequentially(y, from, to);
+	}
 
-		private void updateEdgeMatrix () {
-			this.logger.log("updating Edges Matrix");
-			//remove seam from edges matrix
-			for (int i = 0; i < lastSeam.length; i++) {
-				this.edges[i].remove(lastSeam[i]);
-				this.edges[i].subList(this.edges[i].size(), this.edges[i].size()).clear();
+	private long sweepRowSequentially(int y, int from, int to) {
+		int changedFrom = Integer.MAX_VALUE;
+		int changedTo = Integer.MIN_VALUE;
+		for (int x = from; x <= to; x++) {
+			int i = y * stride + x;
+			long cost = calcCost(y, x);
+			if (costMat[i] != cost) {
+				costMat[i] = cost;
+				changedFrom = Math.min(changedFrom, x);
+				changedTo = x;
 			}
-			//TODO: perform the calculation ONLY to the pixels located besides the removed seam.
-			//calc new magnitude for the new edges matrix
-			for (int y = 0; y < edges.length; y++) {
-				for (int x = 0; x < edges[y].size(); x++) {
-					this.edges[y].get(x).magnitude = updateMagnitude(this.edges[y].get(x),x,y);
-				}
+		}
+		return packRange(changedFrom, changedTo);
+	}
+
+	// MARK: An inner task for the parallel row sweep.
+	@SuppressWarnings("serial")
+	private class RowSweep extends RecursiveTask<Long> {
+		private final int y, from, to;
+
+		RowSweep(int y, int from, int to) {
+			this.y = y;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Long compute() {
+			if (to - from + 1 < 2 * options.minChunkWidth())
+				return sweepRowSequentially(y, from, to);
+
+			int mid = (from + to) >>> 1;
+			RowSweep left = new RowSweep(y, from, mid);
+			left.fork();
+			long right = new RowSweep(y, mid + 1, to).compute();
+			long changed = left.join();
+			return packRange(Math.min(rangeFrom(changed), rangeFrom(right)),
+					Math.max(rangeTo(changed), rangeTo(right)));
+		}
+	}
+
+	// a column range [from, to] packed into a long; from > to means an empty range.
+	private static long packRange(int from, int to) {
+		return ((long) from << 32) | (to & 0xFFFFFFFFL);
+	}
+
+	private static int rangeFrom(long range) {
+		return (int) (range >> 32);
+	}
+
+	private static int rangeTo(long range) {
+		return (int) range;
+	}
+
+	// a debug check (enabled with -ea) for the incremental cost update mode.
+	private boolean costMatchesFullRecompute() {
+		for (int y = 0; y < rows; y++) {
+			for (int x = 0; x < curWidth; x++) {
+				if (costMat[y * stride + x] != calcCost(y, x))
+					return false;
 			}
-			this.logger.log("Finished updating Edges Matrix");
 		}
+		return true;
+	}
+
+	// the forward-energy cumulative cost of a single cell, given the row above it.
+	private long calcCost(int y, int x) {
+		long cost = getPixelEnergy(y, x);
+
+		// fill the first row without considering cl, cv of cr.
+		if (y == 0)
+			return cost;
+
+		int i = y * stride + x;
+		int up = i - stride;
+
+		//left most pixel in the row
+		if (x == 0) {
+			int cr = Math.abs(grey[i + 1] - grey[up]);
+			return cost + Math.min(costMat[up], costMat[up + 1] + cr);
+		}
+		// right most pixel in the row
+		if (x == curWidth - 1) {
+			int cl = Math.abs(grey[i - 1] - grey[up]);
+			return cost + Math.min(costMat[up], costMat[up - 1] + cl);
+		}
+
+		int cv = Math.abs(grey[i - 1] - grey[i + 1]);
+		int cl = cv + Math.abs(grey[i - 1] - grey[up]);
+		int cr = cv + Math.abs(grey[i + 1] - grey[up]);
 
+		return cost + Math.min(costMat[up - 1] + cl,
+				Math.min(costMat[up] + cv,
+						costMat[up + 1] + cr));
+	}
 
+	// the average number of cost cells computed per seam, including the initial fill.
+	public double getCellsRecomputedPerSeam() {
+		return numOfSeams == 0 ? 0 : (double) cellsRecomputed / numOfSeams;
+	}
 
+	private long cost(int y, int x) {
+		return costMat[y * stride + x];
+	}
 
-	/*find a minimal seam using the edges matrix
-	 and store it in the DS.
-	 input: the current seam number.
+	/*trace back in the cost matrix to find the minimal seam,
+	 and update the seams variables.
 	 */
-		private void findMinimalSeam ( int seamNum){
+	private void findMinimalSeam() {
+		Metrics.Timer timer = Metrics.start(Phase.FIND_MINIMAL_SEAM);
+		int xIndex = 0;
+		long minValue = Long.MAX_VALUE;
+		for (int x = 0; x < curWidth; x++) {
+			if (cost(rows - 1, x) < minValue) {
+				minValue = cost(rows - 1, x);
+				xIndex = x;
+			}
+		}
+		backtrackSeam(xIndex, lastSeam);
+		markSeam(lastSeam);
+		timer.stop();
+	}
 
-			long[][] costMat = new long[inHeight][inWidth - seamNum];
+	// trace back the seam ending at column xIndex of the last row into seam.
+	private void backtrackSeam(int xIndex, int[] seam) {
+		seam[rows - 1] = xIndex;
 
-			//fill the matrix
-			for (int y = 0; y < costMat.length; y++) {
-				for (int x = 0; x < costMat[0].length; x++) {
-				//	this.logger.log("working on" +y +"," +x);
-					costMat[y][x] = edges[y].get(x).getPixelEnergy();
+		int nextXIndex;
+		for (int y = rows - 1; y > 0; y--) {
+			//left most pixel in the row
+			if (xIndex == 0) {
+				nextXIndex = cost(y - 1, xIndex) < cost(y - 1, xIndex + 1) ? xIndex : xIndex + 1;
+			}
+			// right most pixel in the row
+			else if (xIndex == curWidth - 1) {
+				nextXIndex = cost(y - 1, xIndex) < cost(y - 1, xIndex - 1) ? xIndex : xIndex - 1;
+			} else {
+				nextXIndex = cost(y - 1, xIndex) < cost(y - 1, xIndex + 1) ? xIndex : xIndex + 1;
+				nextXIndex = cost(y - 1, nextXIndex) < cost(y - 1, xIndex - 1) ? nextXIndex : xIndex - 1;
+			}
 
-					// fill the first row without considering cl, cv of cr.
-					if (y == 0) continue;
+			seam[y - 1] = nextXIndex;
+			xIndex = nextXIndex;
+		}
+	}
 
-					int cl;
-					int cv;
-					int cr;
+	// store a seam in original image coordinates and account for its cost.
+	private void markSeam(int[] seam) {
+		options.progressMonitor().checkCancelled();
+		options.progressMonitor().worked(1);
+		seamsFound++;
+		for (int y = 0; y < rows; y++) {
+			this.seamRank[origIndex[y * stride + seam[y]]] = seamsFound;
+		}
+		this.removedCost += seamCost(seam);
+	}
 
-					//left most pixel in the row
-					if (x == 0) {
-						// find how to calc cv here
-						//cv = (int)   Math.sqrt(Math.pow(this.greyScale[y][x-1] - greyScale[y][x+1], 2));
+	/*
+	 * The forward-energy cost of seam in the current state: the terms calcCost adds up,
+	 * taken along the steps the seam actually makes. The later seams of a pass, or a seam
+	 * backtracked without the step terms, may pay more than the cost matrix promises.
+	 */
+	private long seamCost(int[] seam) {
+		long ans = 0;
+		for (int y = 0; y < rows; y++) {
+			int x = seam[y];
+			ans += getPixelEnergy(y, x);
+			if (y == 0)
+				continue;
 
-						cr = (int) Math.sqrt(Math.pow(greyScale[y][x + 1] - greyScale[y - 1][x], 2));
+			int i = y * stride + x;
+			int up = i - stride;
+			int step = seam[y - 1] - x;
+			if (x > 0 & x < curWidth - 1)
+				ans += Math.abs(grey[i - 1] - grey[i + 1]);
+			if (step < 0)
+				ans += Math.abs(grey[i - 1] - grey[up]);
+			else if (step > 0)
+				ans += Math.abs(grey[i + 1] - grey[up]);
+		}
+		return ans;
+	}
+
+	/*
+	 * The total forward-energy cost of the removed seams, each measured in the state it
+	 * was removed from; the quantity the cost matrix minimizes, so the approximate modes
+	 * can be compared with exact carving by it.
+	 */
+	public long getRemovedCost() {
+		return removedCost;
+	}
 
-						costMat[y][x] += Math.min(costMat[y - 1][x], costMat[y - 1][x + 1] + cr);
+	// MARK: Coarse-to-fine carving on a box pyramid.
+	private static final long UNREACHABLE = Long.MAX_VALUE / 4;
+
+	/*
+	 * The downsampling factor of the coarse level, 2^pyramidLevels, halved while the
+	 * coarse level would be too small to hold its share of the seams: the nested carver
+	 * must accept them, and leave a level of at least 2x2. A factor of 1 is exact carving.
+	 */
+	private int pyramidFactor(int seamsToFind) {
+		int factor = 1 << options.pyramidLevels();
+		while (factor > 1) {
+			int coarseWidth = (curWidth + factor - 1) / factor;
+			int coarseRows = (rows + factor - 1) / factor;
+			int coarseSeams = (seamsToFind + factor - 1) / factor;
+			if (coarseRows >= 2 & coarseWidth - coarseSeams >= 2 & coarseSeams <= coarseWidth / 2)
+				break;
+			factor >>= 1;
+		}
+		return factor;
+	}
+
+	/*
+	 * Finds the seams coarse to fine. A nested carver finds ceil(k / factor) seams on a
+	 * box-downsampled copy of the carved state, and each coarse seam is refined into up
+	 * to factor seams at full resolution. A refined seam is searched only within
+	 * pyramidBand columns of the upscaled coarse path, and the full resolution state is
+	 * carved after every refined seam, as in exact carving.
+	 */
+	private void findSeamsOnPyramid(int seamsToFind, int factor) {
+		int coarseWidth = (curWidth + factor - 1) / factor;
+		int coarseRows = (rows + factor - 1) / factor;
+		int coarseSeams = (seamsToFind + factor - 1) / factor;
+
+		BufferedImage coarseImage = new BufferedImage(coarseWidth, coarseRows, BufferedImage.TYPE_INT_RGB);
+		Mask coarseMask = new Mask(coarseWidth, coarseRows);
+		PixelBuffer coarse = new PixelBuffer(coarseImage);
+		int[] coarseRow = coarse.newRow();
+		for (int cy = 0; cy < coarseRows; cy++) {
+			for (int cx = 0; cx < coarseWidth; cx++) {
+				int sum = 0;
+				int count = 0;
+				for (int y = cy * factor; y < Math.min(rows, (cy + 1) * factor); y++) {
+					for (int x = cx * factor; x < Math.min(curWidth, (cx + 1) * factor); x++) {
+						sum += grey[y * stride + x];
+						if (masked.get(x, y))
+							coarseMask.set(cx, cy);
+						count++;
 					}
-					// right most pixel in the row
-					else if (x == costMat[0].length - 1) {
-						// find how to calc cv here
-						//cv = (int)   Math.sqrt(Math.pow(this.greyScale[y][x-1] - greyScale[y][x+1], 2));
+				}
+				int level = sum / count;
+				coarseRow[cx] = level << 16 | level << 8 | level;
+			}
+			coarse.putRow(cy, coarseRow);
+		}
 
-						cl = (int) Math.sqrt(Math.pow(greyScale[y][x - 1] - greyScale[y - 1][x], 2));
+		// the coarse carver only polls for cancellation, so the progress stays counted in refined seams.
+		SeamsCarver coarseCarver = new SeamsCarver(s -> {}, coarseImage, coarseWidth - coarseSeams,
+				new RGBWeights(1, 1, 1), coarseMask, options.withPyramidLevels(0)
+						.withProgressMonitor(options.progressMonitor().cancellationOnly()));
+
+		// the coarse seams as columns of the coarse level, in removal order.
+		int[][] coarsePaths = new int[coarseSeams][coarseRows];
+		for (int cy = 0; cy < coarseRows; cy++) {
+			for (int cx = 0; cx < coarseWidth; cx++) {
+				int rank = coarseCarver.seamRank[cy * coarseWidth + cx];
+				if (rank != 0)
+					coarsePaths[rank - 1][cy] = cx;
+			}
+		}
 
-						costMat[y][x] += Math.min(costMat[y - 1][x], costMat[y - 1][x - 1] + cl);
-					} else {
-						cl = (int) (Math.sqrt(Math.pow(greyScale[y][x - 1] - greyScale[y][x + 1], 2)) +
-							    	Math.sqrt(Math.pow(greyScale[y][x - 1] - greyScale[y - 1][x], 2)));
+		// the pixels of the state the pyramid was built from, to follow the coarse paths as it is carved.
+		int[] levelIndex = Arrays.copyOf(origIndex, rows * stride);
+		int levelWidth = curWidth;
+		int[] bandLo = new int[rows];
+		int[] bandHi = new int[rows];
 
-						cv = (int) Math.sqrt(Math.pow(greyScale[y][x - 1] - greyScale[y][x + 1], 2));
+		for (int i = 0; i < seamsToFind; i++) {
+			long exact = 0;
+			if (options.measurePyramidDeviation()) {
+				fillCostMatrix();
+				cellsRecomputed -= (long) rows * curWidth;
+				exact = minimalCost(0, curWidth - 1);
+			}
 
-						cr = (int) (Math.sqrt(Math.pow(greyScale[y][x - 1] - greyScale[y][x + 1], 2)) +
-								Math.sqrt(Math.pow(greyScale[y][x + 1] - greyScale[y - 1][x], 2)));
+			setBandAroundPath(coarsePaths[i / factor], factor, levelIndex, levelWidth, bandLo, bandHi);
+			fillBand(bandLo, bandHi);
+			int xIndex = minimalCostColumn(bandLo[rows - 1], bandHi[rows - 1]);
+			if (cost(rows - 1, xIndex) >= UNREACHABLE / 2) {
+				// the band lost the path; fall back to the exact seam.
+				fillCostMatrix();
+				xIndex = minimalCostColumn(0, curWidth - 1);
+			}
 
-						costMat[y][x] += Math.min(costMat[y - 1][x - 1] + cl,
-								Math.min(costMat[y - 1][x] + cv,
-										costMat[y - 1][x + 1] + cr));
-					}
+			if (options.measurePyramidDeviation()) {
+				pyramidExcessCost += cost(rows - 1, xIndex) - exact;
+				exactCost += Math.abs(exact);
+			}
+
+			Metrics.Timer timer = Metrics.start(Phase.FIND_MINIMAL_SEAM);
+			backtrackSeam(xIndex, lastSeam);
+			markSeam(lastSeam);
+			timer.stop();
+			updateEdgeMatrix();
+		}
+
+		this.logger.log("Refined " + coarseSeams + " seams of a " + coarseWidth + "x" + coarseRows
+				+ " pyramid level within " + options.pyramidBand() + " columns of their paths");
+		if (options.measurePyramidDeviation())
+			this.logger.log("The refined seams cost " + String.format("%.3f%%", 100 * getPyramidCostDeviation())
+					+ " more than the exact ones");
+	}
+
+	/*
+	 * Sets, for every row, the columns searched for a refined seam: pyramidBand columns
+	 * around the current position of the coarse path, linearly interpolated between the
+	 * centres of its coarse cells. The bands of neighbouring rows always overlap.
+	 */
+	private void setBandAroundPath(int[] path, int factor, int[] levelIndex, int levelWidth, int[] bandLo,
+								   int[] bandHi) {
+		int band = options.pyramidBand();
+		int lastCoarseRow = path.length - 1;
+		for (int y = 0; y < rows; y++) {
+			double t = Math.max(0, Math.min(lastCoarseRow, (y + 0.5) / factor - 0.5));
+			int above = (int) t;
+			int below = Math.min(lastCoarseRow, above + 1);
+			double cx = path[above] + (path[below] - path[above]) * (t - above);
+			int levelX = Math.min(levelWidth - 1, (int) ((cx + 0.5) * factor));
+			int center = currentColumn(y, levelIndex[y * stride + levelX]);
+
+			int lo = Math.max(0, center - band);
+			int hi = Math.min(curWidth - 1, center + band);
+			if (y > 0) {
+				lo = Math.max(bandLo[y - 1] - 1, Math.min(lo, bandHi[y - 1]));
+				hi = Math.min(bandHi[y - 1] + 1, Math.max(hi, bandLo[y - 1]));
+			}
+			bandLo[y] = lo;
+			bandHi[y] = hi;
+		}
+	}
+
+	// the column of row y holding the pixel of original index o, or where it was before it was removed.
+	private int currentColumn(int y, int o) {
+		int row = y * stride;
+		int lo = 0;
+		int hi = curWidth - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (origIndex[row + mid] < o)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/*
+	 * Fills the cost matrix only within the band. The two cells on each side of the band
+	 * of the row above are marked unreachable first, so calcCost never reads a cell that
+	 * belongs to an older cost matrix.
+	 */
+	private void fillBand(int[] bandLo, int[] bandHi) {
+		Metrics.Timer timer = Metrics.start(Phase.COST_MATRIX);
+		for (int y = 0; y < rows; y++) {
+			if (y > 0) {
+				int up = (y - 1) * stride;
+				for (int x = bandLo[y - 1] - 2; x < bandLo[y - 1]; x++)
+					if (x >= 0)
+						costMat[up + x] = UNREACHABLE;
+				for (int x = bandHi[y - 1] + 1; x <= bandHi[y - 1] + 2; x++)
+					if (x < curWidth)
+						costMat[up + x] = UNREACHABLE;
+			}
+			for (int x = bandLo[y]; x <= bandHi[y]; x++)
+				costMat[y * stride + x] = calcCost(y, x);
+			cellsRecomputed += bandHi[y] - bandLo[y] + 1;
+		}
+		timer.stop();
+	}
+
+	private int minimalCostColumn(int from, int to) {
+		int xIndex = from;
+		for (int x = from + 1; x <= to; x++) {
+			if (cost(rows - 1, x) < cost(rows - 1, xIndex))
+				xIndex = x;
+		}
+		return xIndex;
+	}
+
+	private long minimalCost(int from, int to) {
+		return cost(rows - 1, minimalCostColumn(from, to));
+	}
+
+	/*
+	 * The total cost of the refined seams above the exact seams of the same states,
+	 * relative to the total exact cost; measured only with measurePyramidDeviation.
+	 */
+	public double getPyramidCostDeviation() {
+		return exactCost == 0 ? 0 : (double) pyramidExcessCost / exactCost;
+	}
+
+	// MARK: Approximate carving, several seams per cost matrix pass.
+	/*
+	 * Every pass backtracks from the cheapest bottom-row endpoints of the cost matrix,
+	 * keeping up to seamsPerPass seams that neither share a pixel nor cross an already
+	 * kept seam. All of them are removed together, and only then the energy and the cost
+	 * matrix are refreshed, around the removed seams as in exact carving.
+	 */
+	private void findSeamsInPasses(int seamsToFind) {
+		int seamsPerPass = options.seamsPerPass();
+		int[][] passSeams = new int[seamsPerPass][rows];
+		boolean[] tried = new boolean[curWidth];
+
+		fillCostMatrix();
+		int found = 0;
+		while (true) {
+			Metrics.Timer timer = Metrics.start(Phase.FIND_MINIMAL_SEAM);
+			int count = findDisjointSeams(passSeams, Math.min(seamsPerPass, seamsToFind - found), tried);
+			for (int i = 0; i < count; i++)
+				markSeam(passSeams[i]);
+			// the seams never cross, so ordered by their endpoints they are ordered in every row
+			Arrays.sort(passSeams, 0, count, Comparator.comparingInt(seam -> seam[rows - 1]));
+			timer.stop();
+
+			timer = Metrics.start(Phase.UPDATE_EDGE_MATRIX);
+			removeSeams(passSeams, count);
+			if (options.incrementalEnergy())
+				updateEnergyAroundSeams(passSeams, count);
+			else
+				updateEnergyFully();
+			assert energyMatchesFullRecompute() : "incremental energy update diverged from a full recompute";
+			timer.stop();
+			found += count;
+			passes++;
+			if (found == seamsToFind)
+				break;
+
+			if (options.incrementalCost())
+				updateCostMatrixAroundSeams(passSeams, count);
+			else
+				fillCostMatrix();
+			assert costMatchesFullRecompute() : "incremental cost update diverged from a full recompute";
+		}
+		this.logger.log("Removed " + seamsToFind + " seams in " + passes + " passes");
+	}
+
+	/*
+	 * updateEnergyAroundLastSeam for the seams[0..count) of a pass, ordered left to right.
+	 * Seam i lands at column seams[i][y] - i of the compacted row, and the seams are
+	 * 8-connected, so only the two columns that meet there change.
+	 */
+	private void updateEnergyAroundSeams(int[][] seams, int count) {
+		for (int y = 0; y < rows; y++) {
+			for (int i = 0; i < count; i++) {
+				int column = seams[i][y] - i;
+				int from = Math.max(column - 1, 0);
+				int to = Math.min(column, curWidth - 1);
+				for (int x = from; x <= to; x++) {
+					energy[y * stride + x] = calcMagnitude(y, x);
 				}
 			}
+		}
+	}
 
-        //trace back in the cost matrix to find the minimal seam,
-		//and update the seams variables.
-		int xIndex = 0;
-        long minValue = Long.MAX_VALUE;
-		for (int x = 0; x < costMat[0].length ; x++) {
-			if (costMat[costMat.length-1][x] < minValue) xIndex = x;
-		}
-		this.lastSeam[lastSeam.length-1] = xIndex;
-		this.seamsMatrix[lastSeam.length-1][xIndex] = true;
-
-			int nextXIndex;
-			for (int y = costMat.length - 1; y > 0; y--) {
-				//left most pixel in the row
-				if (xIndex == 0) {
-					nextXIndex = costMat[y - 1][xIndex] < costMat[y - 1][xIndex + 1] ? xIndex : xIndex + 1;
+	/*
+	 * updateCostMatrixAroundLastSeam for the seams[0..count) of a pass, ordered left to
+	 * right. A row sweeps the cells around every seam and below the cells that changed in
+	 * the row above, kept as sorted disjoint column ranges, so only the union of the
+	 * seams' cones is recomputed rather than one range spanning all of them.
+	 */
+	private void updateCostMatrixAroundSeams(int[][] seams, int count) {
+		Metrics.Timer timer = Metrics.start(Phase.COST_MATRIX);
+		int[] sweepFrom = new int[curWidth];
+		int[] sweepTo = new int[curWidth];
+		int[] changedFrom = new int[curWidth];
+		int[] changedTo = new int[curWidth];
+		int changedRanges = 0;
+		for (int y = 0; y < rows; y++) {
+			// merges the seam ranges and the widened changed ranges of the row above, both sorted
+			int sweeps = 0;
+			int seam = 0;
+			int changed = 0;
+			while (seam < count | changed < changedRanges) {
+				int from, to;
+				if (changed == changedRanges || seam < count && seams[seam][y] - seam - 2 <= changedFrom[changed] - 1) {
+					from = seams[seam][y] - seam - 2;
+					to = seams[seam][y] - seam + 1;
+					seam++;
+				} else {
+					from = changedFrom[changed] - 1;
+					to = changedTo[changed] + 1;
+					changed++;
 				}
-				// right most pixel in the row
-				else if (xIndex == costMat[0].length - 1) {
-					nextXIndex = costMat[y - 1][xIndex] < costMat[y - 1][xIndex - 1] ? xIndex : xIndex - 1;
+				from = Math.max(from, 0);
+				to = Math.min(to, curWidth - 1);
+				if (sweeps > 0 && from <= sweepTo[sweeps - 1] + 1) {
+					sweepTo[sweeps - 1] = Math.max(sweepTo[sweeps - 1], to);
 				} else {
-					nextXIndex = costMat[y - 1][xIndex] < costMat[y - 1][xIndex + 1] ? xIndex : xIndex + 1;
-					nextXIndex = costMat[y - 1][nextXIndex] < costMat[y - 1][xIndex - 1] ? nextXIndex : xIndex - 1;
+					sweepFrom[sweeps] = from;
+					sweepTo[sweeps++] = to;
 				}
+			}
 
-			this.lastSeam[y-1] = nextXIndex;
-			this.seamsMatrix[y-1][nextXIndex] = true;
+			changedRanges = 0;
+			for (int i = 0; i < sweeps; i++) {
+				long range = sweepRow(y, sweepFrom[i], sweepTo[i]);
+				if (rangeFrom(range) <= rangeTo(range)) {
+					changedFrom[changedRanges] = rangeFrom(range);
+					changedTo[changedRanges++] = rangeTo(range);
+				}
+				cellsRecomputed += sweepTo[i] - sweepFrom[i] + 1;
+			}
+		}
+		timer.stop();
+	}
+
+	private int findDisjointSeams(int[][] seams, int wanted, boolean[] tried) {
+		Arrays.fill(tried, 0, curWidth, false);
+		int count = 0;
+		// a bounded number of endpoints is tried, the cheapest first
+		for (int attempt = 0; attempt < 4 * wanted && count < wanted; attempt++) {
+			int xIndex = -1;
+			for (int x = 0; x < curWidth; x++) {
+				if (!tried[x] && (xIndex < 0 || cost(rows - 1, x) < cost(rows - 1, xIndex)))
+					xIndex = x;
+			}
+			if (xIndex < 0)
+				break;
+
+			tried[xIndex] = true;
+			if (count == 0)
+				backtrackSeam(xIndex, seams[count]);
+			else if (!backtrackSeamBetween(xIndex, seams, count))
+				continue;
+
+			count++;
+		}
+		return count;
+	}
+
+	/*
+	 * Like backtrackSeam, but every step must stay strictly between the kept seams
+	 * seams[0..count) that surround the endpoint, so the new seam neither shares a pixel
+	 * with nor crosses any of them. The seam is written into seams[count]; returns false
+	 * when it gets boxed in.
+	 */
+	private boolean backtrackSeamBetween(int xIndex, int[][] seams, int count) {
+		int[] seam = seams[count];
+		seam[rows - 1] = xIndex;
+		for (int y = rows - 1; y >= 0; y--) {
+			int left = -1;
+			int right = curWidth;
+			for (int i = 0; i < count; i++) {
+				if (seams[i][rows - 1] < seam[rows - 1])
+					left = Math.max(left, seams[i][y]);
+				else
+					right = Math.min(right, seams[i][y]);
+			}
+
+			if (y == rows - 1) {
+				if (xIndex <= left || xIndex >= right)
+					return false;
+				continue;
+			}
+
+			int nextXIndex = -1;
+			for (int x = Math.max(xIndex - 1, left + 1); x <= Math.min(xIndex + 1, right - 1); x++) {
+				if (nextXIndex < 0 || cost(y, x) < cost(y, nextXIndex))
+					nextXIndex = x;
+			}
+			if (nextXIndex < 0)
+				return false;
+
+			seam[y] = nextXIndex;
 			xIndex = nextXIndex;
 		}
+		return true;
 	}
 
-		public BufferedImage resize () {
-			return resizeOp.resize();
+	// remove seams[0..count), ordered left to right, from the carver state, compacting every row in a single sweep.
+	private void removeSeams(int[][] seams, int count) {
+		for (int y = 0; y < rows; y++) {
+			int row = y * stride;
+			int write = seams[0][y];
+			for (int i = 0; i < count; i++) {
+				int from = seams[i][y] + 1;
+				int to = i + 1 < count ? seams[i + 1][y] : curWidth;
+				int len = to - from;
+				System.arraycopy(grey, row + from, grey, row + write, len);
+				System.arraycopy(energy, row + from, energy, row + write, len);
+				System.arraycopy(origIndex, row + from, origIndex, row + write, len);
+				System.arraycopy(costMat, row + from, costMat, row + write, len);
+				write += len;
+			}
+			// the mask bits are compacted from the rightmost seam, so the other columns stay put
+			for (int i = count - 1; i >= 0; i--)
+				masked.removeColumn(y, seams[i][y], curWidth - (count - 1 - i));
 		}
+		curWidth -= count;
+	}
 
-		// delete all the seams found in the DS from the original image.
-		private BufferedImage reduceImageWidth () {
-			// TODO: Implement this method, remove the exception.
-			logger.log("Preparing for reducingImageWidth");
-			BufferedImage ans = newEmptyInputSizedImage();
+	public BufferedImage resize() {
+		return resizeOp.resize();
+	}
+
+	// Resizes workingImage to outWidth x outHeight: vertical seams first, then horizontal ones.
+	public static BufferedImage resize(Logger logger, BufferedImage workingImage, int outWidth, int outHeight,
+									   RGBWeights rgbWeights, Mask imageMask) {
+		return new SeamsCarver(logger, workingImage, outWidth, outHeight, rgbWeights, imageMask,
+				CarvingOptions.DEFAULT).resize();
+	}
 
-			forEach((y, x) -> {
+	// delete all the seams found in the DS from the original image.
+	private BufferedImage reduceImageSize() {
+		logger.log("Preparing for reducingImageSize");
+		Metrics.Timer timer = Metrics.start(Phase.REDUCE_IMAGE_SIZE);
+		BufferedImage ans = newEmptyOutputSizedImage();
 
-				if (seamsMatrix[y][x]){
-					Color c = new Color(255, 0, 0);
-					ans.setRGB(x, y, c.getRGB());
-				} else {
-					Color c = new Color(workingImage.getRGB(x, y));
-					ans.setRGB(x, y, c.getRGB());
+		PixelBuffer src = new PixelBuffer(workingImage);
+		PixelBuffer dst = new PixelBuffer(ans);
+
+		// every surviving pixel is gathered through its original index.
+		pushForEachParameters();
+		setForEachOutputParameters();
+		forEachBand(parallelByDefault((long) outWidth * outHeight), (fromY, toY) -> {
+			int[] dstRow = dst.newRow();
+			for (int y = fromY; y < toY; y++) {
+				for (int x = 0; x < outWidth; x++) {
+					int o = origIndex[layoutIndex(x, y)];
+					dstRow[x] = src.getRGB(o % inWidth, o / inWidth);
 				}
-			});
+				dst.putRow(y, dstRow);
+			}
+		});
+		popForEachParameters();
 
-			logger.log("reducingImageWidth done!");
+		timer.stop();
+		logger.log("reducingImageSize done!");
+		return ans;
+	}
+
+	// duplicate each of the seams found in the DS from the original image.
+	private BufferedImage increaseImageWidth() {
+		// TODO: Implement this method, remove the exception.
+		throw new UnimplementedMethodException("increaseImageWidth");
+	}
+
+	// Returns a copy of workingImage with all the seams found painted in seamColorRGB.
+	public BufferedImage showSeams(int seamColorRGB) {
+		BufferedImage ans = duplicateWorkingImage();
+		if (seamRank == null)
 			return ans;
-			//throw new UnimplementedMethodException("reduceImageWidth");
-		}
 
-		// duplicate each of the seams found in the DS from the original image.
-		private BufferedImage increaseImageWidth () {
-			// TODO: Implement this method, remove the exception.
-			throw new UnimplementedMethodException("increaseImageWidth");
-		}
+		PixelBuffer dst = new PixelBuffer(ans);
+		int[] row = dst.newRow();
+		forEachHeight(y -> {
+			dst.getRow(y, row);
+			for (int x = 0; x < inWidth; x++) {
+				if (seamRank[y * inWidth + x] != 0)
+					row[x] = seamColorRGB;
+			}
+			dst.putRow(y, row);
+		});
 
-		public BufferedImage showSeams ( int seamColorRGB){
-			// TODO: Implement this method (bonus), remove the exception.
-			throw new UnimplementedMethodException("showSeams");
-		}
+		return ans;
+	}
 
-		public boolean[][] getMaskAfterSeamCarving () {
-			// TODO: Implement this method, remove the exception.
-			// This method should return the mask of the resize image after seam carving.
-			// Meaning, after applying Seam Carving on the input image,
-			// getMaskAfterSeamCarving() will return a mask, with the same dimensions as the
-			// resized image, where the mask values match the original mask values for the
-			// corresponding pixels.
-			// HINT: Once you remove (replicate) the chosen seams from the input image, you
-			// need to also remove (replicate) the matching entries from the mask as well.
+	/*
+	 * Returns the mask of the resized image: after seam carving, the mask values are
+	 * carried in the carver state, so they match the original mask values of the pixels
+	 * that survived.
+	 */
+	public Mask getMaskAfterSeamCarving() {
+		if (masked == null)
+			return imageMask.copy();
+		if (rankOrientation != null)
+			return getMaskAfterSeamCarving(rankOrientation == Orientation.VERTICAL ? outWidth : outHeight);
 
-			forEach((y, x) -> {
-				if (seamsMatrix[y][x]) imageMask[y][x] = false;
-			});
+		// the valid part of the carved layout, transposed back for horizontal seams
+		Mask carved = masked.crop(curWidth, rows);
+		return orientation == Orientation.VERTICAL ? carved : carved.transposed();
+	}
 
-			return imageMask;
-			//throw new UnimplementedMethodException("getMaskAfterSeamCarving");
-		}
+	// MARK: Retargeting through the seam rank map
+	// The smallest size a carver of a single orientation can be retargeted to.
+	public int minRetargetSize() {
+		checkRankMap();
+		return (rankOrientation == Orientation.VERTICAL ? inWidth : inHeight) - seamsFound;
+	}
 
-		class Pixel {
-			int x;
-			int y;
-			int greyColor;
-			int magnitude;
+	/*
+	 * Produces the image as if only the first (input size - outSize) seams had been
+	 * removed; outSize is a width for vertical seams and a height for horizontal ones,
+	 * between minRetargetSize() and the input size.
+	 */
+	public BufferedImage resize(int outSize) {
+		int seams = retargetSeams(outSize);
+		Metrics.Timer timer = Metrics.start(Phase.REDUCE_IMAGE_SIZE);
+		BufferedImage ans;
+		PixelBuffer src = new PixelBuffer(workingImage);
 
-			public Pixel(int x, int y, int greyColor) {
-				this.x = x;
-				this.y = y;
-				this.greyColor = greyColor;
+		if (rankOrientation == Orientation.VERTICAL) {
+			ans = newEmptyImage(outSize, inHeight);
+			PixelBuffer dst = new PixelBuffer(ans);
+			forEachBand(parallelByDefault((long) outSize * inHeight), (fromY, toY) -> {
+				int[] srcRow = src.newRow();
+				int[] dstRow = dst.newRow();
+				for (int y = fromY; y < toY; y++) {
+					src.getRow(y, srcRow);
+					int rank = y * inWidth;
+					int write = 0;
+					for (int x = 0; x < inWidth; x++) {
+						if (kept(seamRank[rank + x], seams))
+							dstRow[write++] = srcRow[x];
+					}
+					dst.putRow(y, dstRow);
+				}
+			});
+		} else {
+			// every column keeps its own write position, so the rows are built in a plane first.
+			ans = newEmptyImage(inWidth, outSize);
+			PixelBuffer dst = new PixelBuffer(ans);
+			int[] plane = new int[outSize * inWidth];
+			int[] writeRow = new int[inWidth];
+			int[] srcRow = src.newRow();
+			forEachHeight(y -> {
+				src.getRow(y, srcRow);
+				for (int x = 0; x < inWidth; x++) {
+					if (kept(seamRank[y * inWidth + x], seams))
+						plane[writeRow[x]++ * inWidth + x] = srcRow[x];
+				}
+			});
+			int[] dstRow = dst.newRow();
+			for (int y = 0; y < outSize; y++) {
+				System.arraycopy(plane, y * inWidth, dstRow, 0, inWidth);
+				dst.putRow(y, dstRow);
 			}
+		}
+
+		timer.stop();
+		logger.log("retargeted to " + ans.getWidth() + "x" + ans.getHeight());
+		return ans;
+	}
+
+	// The mask of resize(outSize).
+	public Mask getMaskAfterSeamCarving(int outSize) {
+		int seams = retargetSeams(outSize);
+		Mask ans;
 
-			/**
-			 * get the pixels energy considering his magnitude and mask value.
-			 * NOTE: we assume that imageMask his a global variable in the scope.
-			 */
-			public long getPixelEnergy() {
-				return imageMask[this.y][this.x] ? (long) this.magnitude + (long) Integer.MIN_VALUE : this.magnitude;
+		if (rankOrientation == Orientation.VERTICAL) {
+			ans = new Mask(outSize, inHeight);
+			for (int y = 0; y < inHeight; y++) {
+				int write = 0;
+				for (int x = 0; x < inWidth; x++) {
+					if (kept(seamRank[y * inWidth + x], seams)) {
+						if (imageMask.get(x, y))
+							ans.set(write, y);
+						write++;
+					}
+				}
+			}
+		} else {
+			ans = new Mask(inWidth, outSize);
+			int[] writeRow = new int[inWidth];
+			for (int y = 0; y < inHeight; y++) {
+				for (int x = 0; x < inWidth; x++) {
+					if (kept(seamRank[y * inWidth + x], seams)) {
+						if (imageMask.get(x, y))
+							ans.set(x, writeRow[x]);
+						writeRow[x]++;
+					}
+				}
 			}
 		}
+
+		return ans;
+	}
+
+	private static boolean kept(int rank, int seams) {
+		return rank == 0 | rank > seams;
 	}
 
+	// The number of seams to remove for outSize.
+	private int retargetSeams(int outSize) {
+		int inSize = minRetargetSize() + seamsFound;
+		if (outSize < minRetargetSize() | outSize > inSize)
+			throw new RuntimeException("Can not retarget to " + outSize + ": the seams found allow sizes between "
+					+ minRetargetSize() + " and " + inSize);
 
+		return inSize - outSize;
+	}
+
+	private void checkRankMap() {
+		if (rankOrientation == null)
+			throw new RuntimeException("Retargeting needs a carver of a single orientation, that found seams");
+	}
+}
@@ -0,0 +1,17 @@
+package edu.cg;
+
+/*
+ * Vectorized versions of the ImageProcessor row kernels. They must give exactly the
+ * results of the scalar kernels. The implementation (edu.cg.vector.VectorKernels,
+ * under vector/) needs the jdk.incubator.vector module, so it is compiled and run with
+ * --add-modules jdk.incubator.vector; ImageProcessor loads it reflectively and keeps
+ * the scalar kernels when it is missing.
+ */
+public interface SimdKernels {
+	void changeHue(int[] row, int from, int to, RGBWeights rgbWeights);
+
+	void greyscale(int[] row, int from, int to, RGBWeights rgbWeights);
+
+	// The number of int lanes per vector, for the logs.
+	int lanes();
+}
@@ -0,0 +1,131 @@
+package edu.cg;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/*
+ * Applies a point operation (a RowKernel) to an image file without ever holding the
+ * whole image. The writer is handed a BandedImage; a band is decoded only when the
+ * writer asks for it, with ImageReadParam.setSourceRegion, run through the kernel, and
+ * dropped once the writer moves on to the next one. Memory is then a single band,
+ * whatever the image height.
+ *
+ * Writers that pull their input row by row (PNG, BMP, TIFF) keep that bound; the JPEG
+ * writer asks for the whole raster at once, so it still gets a full image, assembled
+ * band by band. Readers of TIFF and BMP files seek straight to a band, while PNG and
+ * JPEG readers decode the rows above it again, so taller bands pay off for those.
+ */
+public class StreamingProcessor {
+	public static final int DEFAULT_BAND_HEIGHT = 256;
+
+	// MARK: fields
+	public final Logger logger;
+	public final RowKernel kernel;
+	public final int bandHeight;
+
+	public StreamingProcessor(Logger logger, RowKernel kernel) {
+		this(logger, kernel, DEFAULT_BAND_HEIGHT);
+	}
+
+	public StreamingProcessor(Logger logger, RowKernel kernel, int bandHeight) {
+		if (bandHeight < 1)
+			throw new IllegalArgumentException("bandHeight must be positive");
+
+		this.logger = logger;
+		this.kernel = kernel;
+		this.bandHeight = bandHeight;
+	}
+
+	/*
+	 * Streams in through the kernel into out, in the format of out's suffix; returns the
+	 * number of pixels. The result is written to a temporary file next to out and moved
+	 * over it only once in is closed, so out may be in itself.
+	 */
+	public long process(File in, File out) throws IOException {
+		String name = out.getName();
+		String format = name.contains(".") ? name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT)
+				: "png";
+
+		Path target = out.toPath().toAbsolutePath();
+		// named after this process, so concurrent runs never share it, and created with the usual permissions
+		Path temp = target.resolveSibling(name + "." + ProcessHandle.current().pid() + ".tmp");
+		Files.deleteIfExists(temp);
+		try {
+			long pixels = stream(in, temp.toFile(), format);
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return pixels;
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	// Streams in through the kernel into out, a file that does not exist yet.
+	private long stream(File in, File out, String format) throws IOException {
+		long start = System.nanoTime();
+		try (ImageInputStream input = ImageIO.createImageInputStream(in)) {
+			if (input == null)
+				throw new IOException("can not open " + in);
+
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext())
+				throw new IOException("not a readable image");
+			ImageReader reader = readers.next();
+
+			Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+			if (!writers.hasNext())
+				throw new IOException("no image writer for " + format);
+			ImageWriter writer = writers.next();
+
+			try (ImageOutputStream output = ImageIO.createImageOutputStream(out)) {
+				reader.setInput(input, false, true);
+				int width = reader.getWidth(0);
+				int height = reader.getHeight(0);
+				BandedImage bands = new BandedImage(width, height, bandHeight,
+						(fromY, rows) -> decodeBand(reader, fromY, rows));
+				writer.setOutput(output);
+				writer.write(bands);
+
+				long pixels = (long) width * height;
+				logger.log("Streamed " + width + "x" + height + " in " + bands.bandsRendered() + " bands ("
+						+ ImageProcessor.throughput(start, pixels) + ")");
+				return pixels;
+			} finally {
+				writer.dispose();
+				reader.dispose();
+			}
+		}
+	}
+
+	// Rows [fromY, fromY + rows) of the image, decoded with a source region and run through the kernel.
+	private BufferedImage decodeBand(ImageReader reader, int fromY, int rows) throws IOException {
+		int width = reader.getWidth(0);
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setSourceRegion(new Rectangle(0, fromY, width, rows));
+		BufferedImage decoded = reader.read(0, param);
+
+		BufferedImage processed = new BufferedImage(width, rows, BufferedImage.TYPE_INT_RGB);
+		PixelBuffer src = new PixelBuffer(decoded);
+		PixelBuffer dst = new PixelBuffer(processed);
+		int[] row = src.newRow();
+		for (int y = 0; y < rows; ++y) {
+			src.getRow(y, row);
+			kernel.apply(row, 0, width);
+			dst.putRow(y, row);
+		}
+		return processed;
+	}
+}
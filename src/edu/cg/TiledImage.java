@@ -0,0 +1,232 @@
+package edu.cg;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/*
+ * An image kept in a memory-mapped file instead of on the heap, so its size is bounded
+ * by the disk rather than by -Xmx. Pixels are packed 0xAARRGGBB ints, stored as square
+ * tiles of tileSize x tileSize pixels, one tile after the other. A tile is mapped when
+ * it is first touched, and only the maxResidentTiles most recently used mappings are
+ * kept; the operating system pages the mapped tiles in and out as needed.
+ *
+ * read() and write() decode and encode image files a band of tiles at a time, so an
+ * image larger than the heap goes from file to file through TiledImageProcessor.
+ */
+public class TiledImage implements Closeable {
+	public static final int DEFAULT_TILE_SIZE = 512;
+	public static final int DEFAULT_RESIDENT_TILES = 64;
+
+	// MARK: fields
+	public final int width;
+	public final int height;
+	public final int tileSize;
+	public final int tilesAcross;
+	public final int tilesDown;
+	private final Path file;
+	private final FileChannel channel;
+	private final Map<Integer, IntBuffer> residentTiles;
+
+	// Creates a tiled image in a new temporary file, deleted on close.
+	public TiledImage(int width, int height) throws IOException {
+		this(width, height, DEFAULT_TILE_SIZE, DEFAULT_RESIDENT_TILES);
+	}
+
+	public TiledImage(int width, int height, int tileSize, int maxResidentTiles) throws IOException {
+		if (width < 1 | height < 1 | tileSize < 1 | maxResidentTiles < 1)
+			throw new IllegalArgumentException("The image size, tile size and resident tiles must be positive");
+
+		this.width = width;
+		this.height = height;
+		this.tileSize = tileSize;
+		tilesAcross = (width + tileSize - 1) / tileSize;
+		tilesDown = (height + tileSize - 1) / tileSize;
+		file = Files.createTempFile("tiled-image", ".pixels");
+		file.toFile().deleteOnExit();
+		channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		residentTiles = new LinkedHashMap<Integer, IntBuffer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, IntBuffer> eldest) {
+				return size() > maxResidentTiles;
+			}
+		};
+	}
+
+	/*
+	 * Decodes an image file into a new tiled image, a row of tiles at a time: every band of
+	 * tileSize full rows is decoded with ImageReadParam.setSourceRegion, so the heap holds
+	 * a single band whatever the image size. PNG and JPEG readers decode the rows above
+	 * every band again, as in StreamingProcessor.
+	 */
+	public static TiledImage read(File in) throws IOException {
+		try (ImageInputStream input = ImageIO.createImageInputStream(in)) {
+			if (input == null)
+				throw new IOException("can not open " + in);
+
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext())
+				throw new IOException("not a readable image");
+			ImageReader reader = readers.next();
+
+			try {
+				reader.setInput(input, false, true);
+				TiledImage ans = new TiledImage(reader.getWidth(0), reader.getHeight(0));
+				try {
+					ImageReadParam param = reader.getDefaultReadParam();
+					int[] row = new int[ans.width];
+					for (int tileY = 0; tileY < ans.tilesDown; ++tileY) {
+						int fromY = tileY * ans.tileSize;
+						int rows = ans.tileHeight(tileY);
+						param.setSourceRegion(new Rectangle(0, fromY, ans.width, rows));
+						PixelBuffer band = new PixelBuffer(reader.read(0, param));
+						for (int y = 0; y < rows; ++y) {
+							band.getRow(y, row);
+							ans.putRow(fromY + y, 0, ans.width, row);
+						}
+					}
+				} catch (IOException | RuntimeException e) {
+					try {
+						ans.close();
+					} catch (IOException suppressed) {
+						e.addSuppressed(suppressed);
+					}
+					throw e;
+				}
+				return ans;
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/*
+	 * Encodes the image into out, in the given format, as a BandedImage of tileSize full
+	 * rows that are read back from the tiles only when the writer asks for them. As with
+	 * StreamingProcessor, the JPEG writer asks for the whole raster at once.
+	 */
+	public void write(File out, String format) throws IOException {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+		if (!writers.hasNext())
+			throw new IOException("no image writer for " + format);
+		ImageWriter writer = writers.next();
+
+		// the output stream writes over an existing file without truncating it
+		Files.deleteIfExists(out.toPath());
+		try (ImageOutputStream output = ImageIO.createImageOutputStream(out)) {
+			if (output == null)
+				throw new IOException("can not create " + out);
+
+			writer.setOutput(output);
+			writer.write(new BandedImage(width, height, tileSize, (fromY, rows) -> {
+				BufferedImage band = new BufferedImage(width, rows, BufferedImage.TYPE_INT_RGB);
+				PixelBuffer dst = new PixelBuffer(band);
+				int[] row = dst.newRow();
+				for (int y = 0; y < rows; ++y) {
+					getRow(fromY + y, 0, width, row);
+					dst.putRow(y, row);
+				}
+				return band;
+			}));
+		} finally {
+			writer.dispose();
+		}
+	}
+
+	// MARK: Tiles
+	public int tileWidth(int tileX) {
+		return Math.min(tileSize, width - tileX * tileSize);
+	}
+
+	public int tileHeight(int tileY) {
+		return Math.min(tileSize, height - tileY * tileSize);
+	}
+
+	/*
+	 * The pixels of tile (tileX, tileY), row-major with a stride of tileSize. The buffer
+	 * stays valid after the tile leaves the resident set; use only its absolute get / put
+	 * methods, since it may be shared between threads.
+	 */
+	public IntBuffer tile(int tileX, int tileY) {
+		int index = tileY * tilesAcross + tileX;
+		synchronized (residentTiles) {
+			IntBuffer ans = residentTiles.get(index);
+			if (ans == null) {
+				long tileBytes = 4L * tileSize * tileSize;
+				try {
+					ans = channel.map(MapMode.READ_WRITE, index * tileBytes, tileBytes)
+							.order(ByteOrder.nativeOrder()).asIntBuffer();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				residentTiles.put(index, ans);
+			}
+			return ans;
+		}
+	}
+
+	// MARK: Pixel access
+	public int getRGB(int x, int y) {
+		return tile(x / tileSize, y / tileSize).get((y % tileSize) * tileSize + x % tileSize);
+	}
+
+	public void setRGB(int x, int y, int rgb) {
+		tile(x / tileSize, y / tileSize).put((y % tileSize) * tileSize + x % tileSize, rgb);
+	}
+
+	// Reads pixels [fromX, toX) of row y into dst[0..toX - fromX).
+	public void getRow(int y, int fromX, int toX, int[] dst) {
+		int tileY = y / tileSize;
+		int offset = (y % tileSize) * tileSize;
+		for (int x = fromX; x < toX;) {
+			int tileX = x / tileSize;
+			int length = Math.min(toX, (tileX + 1) * tileSize) - x;
+			tile(tileX, tileY).get(offset + x % tileSize, dst, x - fromX, length);
+			x += length;
+		}
+	}
+
+	// Writes src[0..toX - fromX) into pixels [fromX, toX) of row y.
+	public void putRow(int y, int fromX, int toX, int[] src) {
+		int tileY = y / tileSize;
+		int offset = (y % tileSize) * tileSize;
+		for (int x = fromX; x < toX;) {
+			int tileX = x / tileSize;
+			int length = Math.min(toX, (tileX + 1) * tileSize) - x;
+			tile(tileX, tileY).put(offset + x % tileSize, src, x - fromX, length);
+			x += length;
+		}
+	}
+
+	// Drops the mappings and deletes the backing file.
+	@Override
+	public void close() throws IOException {
+		synchronized (residentTiles) {
+			residentTiles.clear();
+		}
+		channel.close();
+		Files.deleteIfExists(file);
+	}
+}
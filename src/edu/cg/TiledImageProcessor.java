@@ -0,0 +1,122 @@
+package edu.cg;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+
+/*
+ * The ImageProcessor operations for images kept in a TiledImage. Every operation works
+ * one tile (or one tile row) at a time, so the heap holds only a few rows of pixels
+ * whatever the image size. The results are new TiledImages, with the same tile size.
+ */
+public class TiledImageProcessor extends FunctioalForEachLoops {
+	// MARK: fields
+	public final Logger logger;
+	public final TiledImage workingImage;
+	public final RGBWeights rgbWeights;
+
+	public TiledImageProcessor(Logger logger, TiledImage workingImage, RGBWeights rgbWeights) {
+		super();
+
+		this.logger = logger;
+		this.workingImage = workingImage;
+		this.rgbWeights = rgbWeights;
+		setForEachParameters(workingImage.tilesAcross, workingImage.tilesDown);
+	}
+
+	public TiledImage changeHue() throws IOException {
+		logger.log("Prepareing for tiled hue changing...");
+		return pointOperation((row, from, to) -> ImageProcessor.changeHue(row, from, to, rgbWeights),
+				"Changing hue done!");
+	}
+
+	public TiledImage greyscale() throws IOException {
+		logger.log("Preparing for tiled greyscale changing...");
+		return pointOperation((row, from, to) -> ImageProcessor.greyscale(row, from, to, rgbWeights),
+				"Changing to greyscale done!");
+	}
+
+	// Runs a (fused) chain of point operations in a single pass over the tiles.
+	public TiledImage apply(PointOperation operation) throws IOException {
+		logger.log("Prepareing for " + operation.operations() + " tiled point operations in " + operation.stages()
+				+ " stages...");
+		return pointOperation(operation, "Point operations done!");
+	}
+
+	// Applies kernel to every row of every tile; tiles of a tile row are visited in order.
+	private TiledImage pointOperation(RowKernel kernel, String doneMessage) throws IOException {
+		long start = System.nanoTime();
+		long pixels = (long) workingImage.width * workingImage.height;
+		TiledImage ans = newEmptyImage(workingImage.width, workingImage.height);
+		int tileSize = workingImage.tileSize;
+
+		forEachBand(ImageProcessor.parallelByDefault(pixels), (fromTileY, toTileY) -> {
+			int[] row = new int[tileSize];
+			for (int tileY = fromTileY; tileY < toTileY; ++tileY) {
+				for (int tileX = 0; tileX < workingImage.tilesAcross; ++tileX) {
+					IntBuffer src = workingImage.tile(tileX, tileY);
+					IntBuffer dst = ans.tile(tileX, tileY);
+					int tileWidth = workingImage.tileWidth(tileX);
+					for (int y = 0; y < workingImage.tileHeight(tileY); ++y) {
+						src.get(y * tileSize, row, 0, tileWidth);
+						kernel.apply(row, 0, tileWidth);
+						dst.put(y * tileSize, row, 0, tileWidth);
+					}
+				}
+			}
+		});
+
+		logger.log(doneMessage + " (" + ImageProcessor.throughput(start, pixels) + ")");
+		return ans;
+	}
+
+	/*
+	 * Nearest neighbor resampling into outWidth x outHeight. Every output row reads the
+	 * span of its source row that the output tile covers, so a source tile is mapped at
+	 * most once per output tile row.
+	 */
+	public TiledImage nearestNeighbor(int outWidth, int outHeight) throws IOException {
+		logger.log("Prepareing for tiled nearestNeighbor changing...");
+		long start = System.nanoTime();
+
+		double widthRatio = (workingImage.width * 1.0) / outWidth;
+		double heightRatio = (workingImage.height * 1.0) / outHeight;
+		TiledImage ans = newEmptyImage(outWidth, outHeight);
+		int tileSize = ans.tileSize;
+
+		int[] originalWidthIndex = new int[outWidth];
+		for (int x = 0; x < outWidth; ++x)
+			originalWidthIndex[x] = (int) (widthRatio * x);
+
+		pushForEachParameters();
+		setForEachParameters(ans.tilesAcross, ans.tilesDown);
+		forEachBand(ImageProcessor.parallelByDefault((long) outWidth * outHeight), (fromTileY, toTileY) -> {
+			int[] srcRow = new int[workingImage.width];
+			int[] dstRow = new int[tileSize];
+			for (int tileY = fromTileY; tileY < toTileY; ++tileY) {
+				for (int tileX = 0; tileX < ans.tilesAcross; ++tileX) {
+					IntBuffer dst = ans.tile(tileX, tileY);
+					int fromX = tileX * tileSize;
+					int toX = fromX + ans.tileWidth(tileX);
+					int srcFromX = originalWidthIndex[fromX];
+					int srcToX = originalWidthIndex[toX - 1] + 1;
+					for (int y = 0; y < ans.tileHeight(tileY); ++y) {
+						workingImage.getRow((int) (heightRatio * (tileY * tileSize + y)), srcFromX, srcToX, srcRow);
+						for (int x = fromX; x < toX; ++x)
+							dstRow[x - fromX] = 0xFF000000 | srcRow[originalWidthIndex[x] - srcFromX];
+						dst.put(y * tileSize, dstRow, 0, toX - fromX);
+					}
+				}
+			}
+		});
+		popForEachParameters();
+
+		logger.log("Changing to nearestNeighbor done! ("
+				+ ImageProcessor.throughput(start, (long) outWidth * outHeight) + ")");
+		return ans;
+	}
+
+	// A new tiled image laid out like workingImage.
+	private TiledImage newEmptyImage(int width, int height) throws IOException {
+		return new TiledImage(width, height, workingImage.tileSize, TiledImage.DEFAULT_RESIDENT_TILES);
+	}
+}
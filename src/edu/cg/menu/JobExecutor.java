@@ -0,0 +1,170 @@
+package edu.cg.menu;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import javax.swing.SwingUtilities;
+
+import edu.cg.Logger;
+import edu.cg.Metrics;
+import edu.cg.ProgressMonitor;
+
+/*
+ * Runs the MenuWindow operations off the event thread, one at a time, on a single
+ * background worker, so the window stays responsive and a job can be aborted.
+ *
+ * Every job is its own ProgressMonitor: the operation reports its progress to it and
+ * polls it for cancellation. Jobs are keyed by their title and the image they work on;
+ * submitting a job cancels the pending or running job with the same key, which is
+ * stale by then. Jobs are submitted, and their results and errors are delivered, on the
+ * event thread. With -Dcg.metrics=summary, the phase breakdown of every job is logged.
+ */
+public class JobExecutor {
+	// MARK: An inner interface for functional programming.
+	@FunctionalInterface
+	public interface Work<T> {
+		T run(ProgressMonitor monitor) throws Exception;
+	}
+
+	// A submitted job; its progress may be read from any thread.
+	public static final class Job implements ProgressMonitor {
+		public final String title;
+		private final Object key;
+		private volatile boolean cancelled;
+		private volatile String task;
+		private volatile long total;
+		private final AtomicLong done = new AtomicLong();
+
+		private Job(String title, Object key) {
+			this.title = title;
+			this.key = key;
+			task = "waiting";
+		}
+
+		public void cancel() {
+			cancelled = true;
+		}
+
+		// The current task of the job, with the work done out of its total.
+		public String status() {
+			long total = this.total;
+			return title + ": " + task + (total > 0 ? " (" + Math.min(done.get(), total) + "/" + total + ")" : "");
+		}
+
+		// The part of the current task that is done, between 0 and 1.
+		public double fractionDone() {
+			long total = this.total;
+			return total > 0 ? Math.min(1.0, (double) done.get() / total) : 0;
+		}
+
+		// MARK: ProgressMonitor
+		@Override
+		public void begin(String task, long total) {
+			this.task = task;
+			this.total = total;
+			done.set(0);
+		}
+
+		@Override
+		public void worked(long units) {
+			done.addAndGet(units);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	// MARK: fields
+	private final Logger logger;
+	private final BiConsumer<String, Exception> errorHandler;
+	private final ExecutorService worker;
+	// the last job submitted for every key, until it finishes; touched on the event thread only
+	private final Map<Object, Job> latest;
+	private volatile Job running;
+
+	public JobExecutor(Logger logger, BiConsumer<String, Exception> errorHandler) {
+		this.logger = logger;
+		this.errorHandler = errorHandler;
+		worker = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "image-jobs");
+			thread.setDaemon(true);
+			return thread;
+		});
+		latest = new HashMap<>();
+	}
+
+	/*
+	 * Queues work on image under title, superseding the previous job of the same title
+	 * and image. onDone gets the result on the event thread, unless the job was cancelled.
+	 */
+	public <T> Job submit(String title, Object image, Work<T> work, Consumer<T> onDone) {
+		Job job = new Job(title, List.of(title, image));
+		Job stale = latest.put(job.key, job);
+		if (stale != null) {
+			stale.cancel();
+			logger.log(title + ": superseded the previous request");
+		}
+
+		worker.execute(() -> {
+			if (job.isCancelled()) {
+				SwingUtilities.invokeLater(() -> finished(job));
+				return;
+			}
+
+			running = job;
+			Metrics metrics = Metrics.reset();
+			try {
+				T result = work.run(job);
+				SwingUtilities.invokeLater(() -> {
+					finished(job);
+					if (!job.isCancelled())
+						onDone.accept(result);
+				});
+			} catch (CancellationException e) {
+				SwingUtilities.invokeLater(() -> {
+					finished(job);
+					logger.log(title + " was cancelled.");
+				});
+			} catch (Exception e) {
+				SwingUtilities.invokeLater(() -> {
+					finished(job);
+					errorHandler.accept(title, e);
+				});
+			} finally {
+				running = null;
+				if (Metrics.SUMMARY)
+					logger.log(title + ": " + metrics.summary());
+			}
+		});
+		return job;
+	}
+
+	private void finished(Job job) {
+		latest.remove(job.key, job);
+	}
+
+	// The job being run, or null when the worker is idle.
+	public Job running() {
+		return running;
+	}
+
+	// The number of jobs submitted and not finished yet, the running one included.
+	public int jobs() {
+		return latest.size();
+	}
+
+	// Cancels every pending job and the running one.
+	public void cancelAll() {
+		for (Job job : latest.values())
+			job.cancel();
+	}
+}
@@ -21,13 +21,17 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.border.EmptyBorder;
 
+import edu.cg.CopyOnWrite;
+import edu.cg.Mask;
+
 @SuppressWarnings("serial")
 public class MaskPainterWindow extends JFrame {
 	private MenuWindow menuWindow;
 	private BufferedImage img;
 	private int imgHeight;
 	private int imgWidth;
-	private boolean[][] imageMask;
+	// shared with the menu window by Set Mask, and copied before the next stroke
+	private CopyOnWrite<Mask> imageMask;
 	private int brushSize = MEDIUM_BRUSH_SIZE;
 	private static final int SMALL_BRUSH_SIZE = 4;
 	private static final int MEDIUM_BRUSH_SIZE = 8;
@@ -88,7 +92,7 @@ public class MaskPainterWindow extends JFrame {
 		JButton btnRemoveObject = new JButton("Remove Object");
 		btnRemoveObject.addActionListener(e -> {
 			try {
-			menuWindow.removeObjectFromImage(imageMask);
+			menuWindow.removeObjectFromImage(imageMask.read());
 			setVisible(false);
 			dispose();
 			}
@@ -153,13 +157,14 @@ public class MaskPainterWindow extends JFrame {
 			int d_y = clipLow(prevY - brushSize);
 			int[] pY = { a_y, b_y, c_y, d_y };
 			Polygon poly = new Polygon(pX, pY, 4);
+			Mask mask = imageMask.write();
 			Graphics g = getGraphics();
 			g.setColor(new Color(255, 0, 0, 50));
 			g.fillPolygon(poly);
 			for (int x = Math.min(d_x, c_x); x <= Math.max(b_x, a_x); x++) {
 				for (int y = Math.min(d_y, c_y); y <= Math.max(b_y, a_y); y++) {
 					if (poly.contains(x, y)) {
-						imageMask[y][x] = true;
+						mask.set(x, y);
 					}
 				}
 			}
@@ -200,7 +205,7 @@ public class MaskPainterWindow extends JFrame {
 
 		// Clears the current mask and repaints the input image.
 		public void clearMask() {
-			imageMask = new boolean[img.getHeight()][img.getWidth()];
+			imageMask = CopyOnWrite.mask(new Mask(img.getWidth(), img.getHeight()));
 			Graphics g = getGraphics();
 			if (g != null) {
 				paintComponent(g);
@@ -3,31 +3,46 @@ package edu.cg.menu;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.GridLayout;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.util.Arrays;
 
 import javax.swing.JFrame;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.border.EmptyBorder;
 
+import edu.cg.CarvingOptions;
+import edu.cg.CopyOnWrite;
 import edu.cg.RGBWeights;
-import edu.cg.ImageProcessor;
+import edu.cg.ImagePipeline;
+import edu.cg.Mask;
+import edu.cg.ImageProcessor.ResamplingFilter;
 import edu.cg.Logger;
+import edu.cg.ProgressMonitor;
 import edu.cg.SeamsCarver;
+import edu.cg.SeamsCarver.Orientation;
 import edu.cg.UnimplementedMethodException;
 import edu.cg.menu.components.ActionsController;
 import edu.cg.menu.components.ColorMixer;
 import edu.cg.menu.components.ImagePicker;
 import edu.cg.menu.components.LogField;
+import edu.cg.menu.components.ProgressField;
 import edu.cg.menu.components.ScaleSelector;
 import edu.cg.menu.components.ScaleSelector.ResizingOperation;
 
 @SuppressWarnings("serial")
 public class MenuWindow extends JFrame implements Logger {
 	// MARK: fields
-	private BufferedImage workingImage;
-	private boolean[][] imageMask;
+	// the actions only read the working image and the mask, so they share them uncopied
+	private CopyOnWrite<BufferedImage> workingImage;
+	private CopyOnWrite<Mask> imageMask;
 	private String imageTitle;
+	// a vertical carver kept for retargeting the width, until the image, mask or weights change;
+	// only the job worker builds and reads it, the event thread may drop it
+	private volatile SeamsCarver widthRetargeter;
+	private Mask widthRetargeterMask;
+	private RGBWeights widthRetargeterWeights;
+	private final JobExecutor jobs;
 
 	// MARK: GUI fields
 	private ImagePicker imagePicker;
@@ -35,6 +50,7 @@ public class MenuWindow extends JFrame implements Logger {
 	private ScaleSelector scaleSelector;
 	private ActionsController actionsController;
 	private LogField logField;
+	private ProgressField progressField;
 
 	public MenuWindow() {
 		super();
@@ -52,6 +68,8 @@ public class MenuWindow extends JFrame implements Logger {
 		imagePicker = new ImagePicker(this);
 		colorMixer = new ColorMixer();
 		scaleSelector = new ScaleSelector();
+		jobs = new JobExecutor(this, this::jobFailed);
+		progressField = new ProgressField(jobs);
 		actionsController = new ActionsController(this);
 		logField = new LogField();
 
@@ -73,6 +91,7 @@ public class MenuWindow extends JFrame implements Logger {
 		panel3.add(scaleSelector);
 		panel2.add(actionsController);
 		panel1.add(logField);
+		contentPane.add(progressField, BorderLayout.SOUTH);
 
 		workingImage = null;
 		imageMask = null;
@@ -87,17 +106,16 @@ public class MenuWindow extends JFrame implements Logger {
 		log("Application started.");
 	}
 
+	// MARK: Actions
+	// Every action reads its parameters here, on the event thread, and runs as a background job.
 	public void changeHue() {
-		int outWidth = scaleSelector.width();
-		int outHeight = scaleSelector.height();
-		RGBWeights rgbWeights = colorMixer.getRGBWeights();
-		BufferedImage img = new ImageProcessor(this, duplicateImage(), rgbWeights, outWidth, outHeight).changeHue();
-		present(img, "Change hue");
+		ImagePipeline pipeline = pipeline().changeHue();
+		submit("Change hue", pipeline::render);
 	}
 
 	public void greyscale() {
-		BufferedImage img = new ImageProcessor(this, duplicateImage(), colorMixer.getRGBWeights()).greyscale();
-		present(img, "Grey scale");
+		ImagePipeline pipeline = pipeline().greyscale();
+		submit("Grey scale", pipeline::render);
 	}
 
 	public void resize() {
@@ -105,43 +123,91 @@ public class MenuWindow extends JFrame implements Logger {
 		int outHeight = scaleSelector.height();
 		ResizingOperation op = scaleSelector.resizingOperation();
 		RGBWeights rgbWeights = colorMixer.getRGBWeights();
-		BufferedImage img;
+		BufferedImage image = workingImage.read();
+		Mask mask = imageMask.read();
+		JobExecutor.Work<BufferedImage> work;
 		switch (op) {
 		case NEAREST_NEIGHBOR:
-			img = new ImageProcessor(this, duplicateImage(), rgbWeights, outWidth, outHeight).nearestNeighbor();
+			work = pipeline().nearestNeighbor(outWidth, outHeight)::render;
+			break;
+
+		case BILINEAR:
+			work = pipeline().resample(ResamplingFilter.BILINEAR, outWidth, outHeight)::render;
+			break;
+
+		case BICUBIC:
+			work = pipeline().resample(ResamplingFilter.BICUBIC, outWidth, outHeight)::render;
 			break;
 
 		default: // seam carving
-			SeamsCarver sc = new SeamsCarver(this, duplicateImage(), outWidth, rgbWeights, duplicateMask());
-			img = sc.resize();
-			boolean[][] new_mask = sc.getMaskAfterSeamCarving();
-			img = new SeamsCarver(this, rotateClockwise(img), outHeight, rgbWeights, rotateMaskClockwise(new_mask))
-					.resize();
-			img = rotateCounterclockwise(img);
+			if (outHeight == image.getHeight() & outWidth < image.getWidth())
+				work = monitor -> widthRetargeter(image, mask, outWidth, rgbWeights, monitor).resize(outWidth);
+			else
+				work = pipeline().seamCarve(outWidth, outHeight, mask)::render;
 			break;
 		}
 
-		present(img, "Resize: " + op.title + " [" + outWidth + "][" + outHeight + "]");
+		// the title is the key of the job, so a new size supersedes a pending resize.
+		String title = "Resize: " + op.title;
+		jobs.submit(title, image, work, img -> present(img, title + " [" + outWidth + "][" + outHeight + "]"));
+	}
+
+	/*
+	 * Width-only seam carving reuses the seam rank map of the last carver as long as it
+	 * reaches outWidth, so changing the width does not redo the seam search. The carver
+	 * is built on the job worker, and is only reused for the same image, mask and weights.
+	 */
+	private SeamsCarver widthRetargeter(BufferedImage image, Mask mask, int outWidth, RGBWeights rgbWeights,
+			ProgressMonitor monitor) {
+		SeamsCarver carver = widthRetargeter;
+		if (carver == null || carver.workingImage != image || widthRetargeterMask != mask
+				|| !sameWeights(rgbWeights, widthRetargeterWeights) || outWidth < carver.minRetargetSize()) {
+			widthRetargeter = null;
+			carver = new SeamsCarver(this, image, outWidth, rgbWeights, mask,
+					CarvingOptions.DEFAULT.withProgressMonitor(monitor));
+			widthRetargeterMask = mask;
+			widthRetargeterWeights = rgbWeights;
+			widthRetargeter = carver;
+		} else {
+			log("Seam carving: reusing the seams found down to width " + carver.minRetargetSize());
+		}
+
+		carver.setProgressMonitor(monitor.cancellationOnly());
+		return carver;
+	}
+
+	private static boolean sameWeights(RGBWeights a, RGBWeights b) {
+		return a.redWeight == b.redWeight & a.greenWeight == b.greenWeight & a.blueWeight == b.blueWeight;
 	}
 
 	public void showSeamsVertical() {
 		int outWidth = scaleSelector.width();
 		RGBWeights rgbWeights = colorMixer.getRGBWeights();
-		BufferedImage vertical = new SeamsCarver(this, duplicateImage(), outWidth, rgbWeights, duplicateMask())
-				.showSeams(Color.RED.getRGB());
-		present(vertical, "Show seams vertical");
+		BufferedImage image = workingImage.read();
+		Mask mask = imageMask.read();
+		submit("Show seams vertical", monitor -> new SeamsCarver(this, image, outWidth, rgbWeights, mask,
+				CarvingOptions.DEFAULT.withProgressMonitor(monitor)).showSeams(Color.RED.getRGB()));
 	}
 
 	public void showSeamsHorizontal() {
 		int outHeight = scaleSelector.height();
 		RGBWeights rgbWeights = colorMixer.getRGBWeights();
+		BufferedImage image = workingImage.read();
+		Mask mask = imageMask.read();
+		submit("Show seams horizontal", monitor -> new SeamsCarver(this, image, Orientation.HORIZONTAL, outHeight,
+				rgbWeights, mask, CarvingOptions.DEFAULT.withProgressMonitor(monitor)).showSeams(Color.BLACK.getRGB()));
+	}
 
-		BufferedImage horizontal = new SeamsCarver(this, rotateClockwise(workingImage), outHeight, rgbWeights,
-				rotateMaskClockwise(imageMask)).showSeams(Color.BLACK.getRGB());
-
-		horizontal = rotateCounterclockwise(horizontal);
+	// Runs work on the working image in the background and presents its result under title.
+	private void submit(String title, JobExecutor.Work<BufferedImage> work) {
+		jobs.submit(title, workingImage.read(), work, img -> present(img, title));
+	}
 
-		present(horizontal, "Show seams horizontal");
+	// Reports the failure of a background job, as ActionsController does for the actions themselves.
+	private void jobFailed(String title, Exception e) {
+		String msg = "Error in " + title + "!" + System.lineSeparator() + e.getMessage();
+		log(msg);
+		JOptionPane.showMessageDialog(this, msg, "Error", JOptionPane.ERROR_MESSAGE);
 	}
 
 	private void present(BufferedImage img, String title) {
@@ -151,85 +217,28 @@ public class MenuWindow extends JFrame implements Logger {
 		new ImageWindow(img, imageTitle + "; " + title, this).setVisible(true);
 	}
 
-	private static BufferedImage rotateClockwise(BufferedImage img) {
-		int imgWidth = img.getWidth();
-		int imgHeight = img.getHeight();
-		BufferedImage ans = new BufferedImage(imgHeight, imgWidth, img.getType());
-		for (int y = 0; y < imgWidth; ++y)
-			for (int x = 0; x < imgHeight; ++x) {
-				int imgX = y;
-				int imgY = imgHeight - 1 - x;
-				ans.setRGB(x, y, img.getRGB(imgX, imgY));
-			}
-
-		return ans;
-	}
-
-	private static boolean[][] rotateMaskClockwise(boolean[][] mask) {
-		int height = mask.length;
-		int width = mask[0].length;
-		boolean[][] ans = new boolean[width][height];
-		for (int y = 0; y < height; ++y)
-			for (int x = 0; x < width; ++x) {
-				int X = y;
-				int Y = width - 1 - x;
-				ans[Y][X] = mask[y][x];
-			}
-
-		return ans;
-	}
-
-	private static BufferedImage rotateCounterclockwise(BufferedImage img) {
-		int imgWidth = img.getWidth();
-		int imgHeight = img.getHeight();
-		BufferedImage ans = new BufferedImage(imgHeight, imgWidth, img.getType());
-		for (int y = 0; y < imgWidth; ++y)
-			for (int x = 0; x < imgHeight; ++x) {
-				int imgX = imgWidth - 1 - y;
-				int imgY = x;
-				ans.setRGB(x, y, img.getRGB(imgX, imgY));
-			}
-
-		return ans;
-	}
-
-	private static BufferedImage duplicateImage(BufferedImage img) {
-		BufferedImage dup = new BufferedImage(img.getWidth(), img.getHeight(), img.getType());
-		for (int y = 0; y < dup.getHeight(); ++y)
-			for (int x = 0; x < dup.getWidth(); ++x)
-				dup.setRGB(x, y, img.getRGB(x, y));
-
-		return dup;
-	}
-
-	private static boolean[][] duplicateMask(boolean[][] mask) {
-		boolean[][] cpyMask = new boolean[mask.length][];
-		for (int i = 0; i < mask.length; i++) {
-			cpyMask[i] = Arrays.copyOf(mask[i], mask[i].length);
-		}
-		return cpyMask;
-	}
-
-	private BufferedImage duplicateImage() {
-		return duplicateImage(workingImage);
-	}
-
-	private boolean[][] duplicateMask() {
-		return duplicateMask(imageMask);
+	/*
+	 * A lazy pipeline over the working image, with the current weights. The operations
+	 * read the working image without modifying it, so it is not copied for them.
+	 */
+	private ImagePipeline pipeline() {
+		return new ImagePipeline(this, workingImage.read(), colorMixer.getRGBWeights());
 	}
 
 	public void setWorkingImage(BufferedImage workingImage, String imageTitle) {
 		this.imageTitle = imageTitle;
-		this.workingImage = workingImage;
+		// the window that presented the image keeps it
+		this.workingImage = CopyOnWrite.image(workingImage).share();
+		widthRetargeter = null;
 		log("Image: " + imageTitle + " has been selected as working image.");
 		scaleSelector.setWidth(workingImage.getWidth());
 		scaleSelector.setHeight(workingImage.getHeight());
 		actionsController.activateButtons();
-		imageMask = new boolean[workingImage.getHeight()][workingImage.getWidth()];
+		imageMask = CopyOnWrite.mask(new Mask(workingImage.getWidth(), workingImage.getHeight()));
 	}
 
 	public void present() {
-		new ImageWindow(workingImage, imageTitle, this).setVisible(true);
+		new ImageWindow(workingImage.read(), imageTitle, this).setVisible(true);
 	}
 
 	// MARK: Logger
@@ -238,11 +247,16 @@ public class MenuWindow extends JFrame implements Logger {
 		logField.log(s);
 	}
 
-	public void setImageMask(boolean[][] srcMask) {
-		imageMask = duplicateMask(srcMask);
+	// The painter keeps painting on its own handle, which copies the mask before its next stroke.
+	public void setImageMask(CopyOnWrite<Mask> srcMask) {
+		imageMask = srcMask.share();
+		widthRetargeter = null;
+		Rectangle bounds = imageMask.read().bounds();
+		log(bounds == null ? "Mask: empty." : "Mask: " + imageMask.read().cardinality() + " pixels within "
+				+ bounds.width + "x" + bounds.height + " at (" + bounds.x + ", " + bounds.y + ")");
 	}
 
-	public void removeObjectFromImage(boolean[][] srcMask) {
+	public void removeObjectFromImage(Mask srcMask) {
 
 		// TODO: Implement this method, remove the exception.
 		throw new UnimplementedMethodException("removeObjectFromImage");
@@ -254,6 +268,7 @@ public class MenuWindow extends JFrame implements Logger {
 	}
 
 	public void maskImage() {
-		new MaskPainterWindow(duplicateImage(), "Mask Painter", this).setVisible(true);
+		// the painter draws its strokes on the screen only, so it shares the working image
+		new MaskPainterWindow(workingImage.read(), "Mask Painter", this).setVisible(true);
 	}
 }
@@ -7,13 +7,20 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
 import javax.swing.border.EtchedBorder;
 
+import edu.cg.AsyncLogger;
 import edu.cg.Logger;
 
+/*
+ * Messages may be logged from any thread without blocking: they are queued in an
+ * AsyncLogger and appended to the text area in batches on the event thread.
+ */
 @SuppressWarnings("serial")
 public class LogField extends JPanel implements Logger {
 	private JTextArea txtLog;
+	private final AsyncLogger queue;
 	
 	
 	public LogField() {
@@ -30,20 +37,29 @@ public class LogField extends JPanel implements Logger {
 		txtLog.setLineWrap(true);
 		JScrollPane scrollLog = new JScrollPane(txtLog);
 		add(scrollLog);
+		
+		queue = new AsyncLogger(SwingUtilities::invokeLater, this::append);
 	}
 
 	@Override
-	public synchronized void log(String s) {
-		if(s == null)
-			s = "null";
-		
+	public void log(String s) {
+		queue.log(s);
+	}
+	
+	// Runs on the event thread; the whole batch is appended at once.
+	private void append(long[] times, String[] messages, int count, long dropped) {
+		StringBuilder batch = new StringBuilder();
 		Calendar cal = Calendar.getInstance();
-		String hh = convertTime(cal.get(Calendar.HOUR_OF_DAY));
-		String mm = convertTime(cal.get(Calendar.MINUTE));
-		String ss = convertTime(cal.get(Calendar.SECOND));
-		String time = "[" + hh + ":" + mm + ":" + ss + "] ~ ";
-		String msg = time + s + System.lineSeparator();
-		txtLog.append(msg);
+		if (dropped > 0)
+			batch.append("[--:--:--] ~ ").append(dropped).append(" messages were dropped").append(System.lineSeparator());
+		for (int i = 0; i < count; ++i) {
+			cal.setTimeInMillis(times[i]);
+			String hh = convertTime(cal.get(Calendar.HOUR_OF_DAY));
+			String mm = convertTime(cal.get(Calendar.MINUTE));
+			String ss = convertTime(cal.get(Calendar.SECOND));
+			batch.append("[" + hh + ":" + mm + ":" + ss + "] ~ ").append(messages[i]).append(System.lineSeparator());
+		}
+		txtLog.append(batch.toString());
 	}
 	
 	private static String convertTime(int t) {
@@ -0,0 +1,56 @@
+package edu.cg.menu.components;
+
+import java.awt.BorderLayout;
+
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.Timer;
+import javax.swing.border.EtchedBorder;
+
+import edu.cg.menu.JobExecutor;
+
+/*
+ * Shows the job the JobExecutor is running, with the progress of its current task, and
+ * cancels the jobs on demand. The job is polled a few times a second on the event
+ * thread, so the operations never have to post their progress to it.
+ */
+@SuppressWarnings("serial")
+public class ProgressField extends JPanel {
+	private static final int REFRESH_MILLIS = 100;
+
+	private JLabel lblStatus;
+	private JProgressBar progressBar;
+	private JButton btnCancel;
+
+	public ProgressField(JobExecutor jobs) {
+		super();
+
+		setBorder(new EtchedBorder(EtchedBorder.LOWERED, null, null));
+		setLayout(new BorderLayout(5, 0));
+
+		lblStatus = new JLabel(" Idle");
+		add(lblStatus, BorderLayout.NORTH);
+
+		progressBar = new JProgressBar(0, 1000);
+		add(progressBar, BorderLayout.CENTER);
+
+		btnCancel = new JButton("Cancel");
+		btnCancel.addActionListener(e -> jobs.cancelAll());
+		btnCancel.setEnabled(false);
+		add(btnCancel, BorderLayout.EAST);
+
+		new Timer(REFRESH_MILLIS, e -> refresh(jobs)).start();
+	}
+
+	private void refresh(JobExecutor jobs) {
+		JobExecutor.Job job = jobs.running();
+		int queued = Math.max(0, jobs.jobs() - (job == null ? 0 : 1));
+		String waiting = queued > 0 ? " [" + queued + " waiting]" : "";
+
+		lblStatus.setText(" " + (job == null ? "Idle" : job.status()) + waiting);
+		progressBar.setValue(job == null ? 0 : (int) (1000 * job.fractionDone()));
+		btnCancel.setEnabled(jobs.jobs() > 0);
+	}
+}
@@ -16,6 +16,8 @@ public class ScaleSelector extends JPanel {
 	private JFormattedTextField height;
 
 	private Checkbox nearestNeighbor;
+	private Checkbox bilinear;
+	private Checkbox bicubic;
 
 	public ScaleSelector() {
 		super();
@@ -31,8 +33,12 @@ public class ScaleSelector extends JPanel {
 
 		CheckboxGroup group = new CheckboxGroup();
 		nearestNeighbor = new Checkbox("Nearest neighbor  ", group, true);
+		bilinear = new Checkbox("Bilinear  ", group, false);
+		bicubic = new Checkbox("Bicubic  ", group, false);
 		Checkbox seamCarving = new Checkbox("Seam carving", group, false);
 		add(nearestNeighbor);
+		add(bilinear);
+		add(bicubic);
 		add(seamCarving);
 	}
 
@@ -65,7 +71,7 @@ public class ScaleSelector extends JPanel {
 	}
 
 	public static enum ResizingOperation {
-		NEAREST_NEIGHBOR("nearest neighbor"), SEAM_CARVING("seam carving");
+		NEAREST_NEIGHBOR("nearest neighbor"), BILINEAR("bilinear"), BICUBIC("bicubic"), SEAM_CARVING("seam carving");
 
 		public final String title;
 
@@ -77,6 +83,10 @@ public class ScaleSelector extends JPanel {
 	public ResizingOperation resizingOperation() {
 		if (nearestNeighbor.getState())
 			return ResizingOperation.NEAREST_NEIGHBOR;
+		else if (bilinear.getState())
+			return ResizingOperation.BILINEAR;
+		else if (bicubic.getState())
+			return ResizingOperation.BICUBIC;
 		else
 			return ResizingOperation.SEAM_CARVING;
 	}
@@ -0,0 +1,110 @@
+package edu.cg.vector;
+
+import edu.cg.RGBWeights;
+import edu.cg.SimdKernels;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+ * The hue and greyscale kernels on the Vector API. Every lane holds one packed pixel;
+ * the channels are unpacked with shifts and masks, weighted with integer multiplies,
+ * and divided through a fixed-point reciprocal that is corrected by one, so every
+ * quotient is exactly the integer division of the scalar kernels. (Int to float lane
+ * conversions are not intrinsified on JDK 17, so the division stays in integers.) The tail of
+ * a row that does not fill a vector goes through the scalar code.
+ */
+public class VectorKernels implements SimdKernels {
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+	@Override
+	public int lanes() {
+		return INTS.length();
+	}
+
+	@Override
+	public void changeHue(int[] row, int from, int to, RGBWeights rgbWeights) {
+		int r = rgbWeights.redWeight;
+		int g = rgbWeights.greenWeight;
+		int b = rgbWeights.blueWeight;
+		int max = rgbWeights.maxWeight;
+		int reciprocal = reciprocal(max);
+
+		int x = from;
+		for (int bound = from + INTS.loopBound(to - from); x < bound; x += INTS.length()) {
+			IntVector rgb = IntVector.fromArray(INTS, row, x);
+			IntVector red = divide(channel(rgb, 16).mul(r), max, reciprocal);
+			IntVector green = divide(channel(rgb, 8).mul(g), max, reciprocal);
+			IntVector blue = divide(channel(rgb, 0).mul(b), max, reciprocal);
+			red.lanewise(VectorOperators.LSHL, 16)
+					.or(green.lanewise(VectorOperators.LSHL, 8))
+					.or(blue)
+					.or(0xFF000000)
+					.intoArray(row, x);
+		}
+
+		for (; x < to; ++x) {
+			int rgb = row[x];
+			int red = r * ((rgb >> 16) & 0xFF) / max;
+			int green = g * ((rgb >> 8) & 0xFF) / max;
+			int blue = b * (rgb & 0xFF) / max;
+			row[x] = 0xFF000000 | red << 16 | green << 8 | blue;
+		}
+	}
+
+	@Override
+	public void greyscale(int[] row, int from, int to, RGBWeights rgbWeights) {
+		int r = rgbWeights.redWeight;
+		int g = rgbWeights.greenWeight;
+		int b = rgbWeights.blueWeight;
+		int weightSum = rgbWeights.weightsAmount;
+		int reciprocal = reciprocal(weightSum);
+
+		int x = from;
+		for (int bound = from + INTS.loopBound(to - from); x < bound; x += INTS.length()) {
+			IntVector rgb = IntVector.fromArray(INTS, row, x);
+			IntVector sum = channel(rgb, 16).mul(r)
+					.add(channel(rgb, 8).mul(g))
+					.add(channel(rgb, 0).mul(b));
+			IntVector grey = divide(sum, weightSum, reciprocal);
+			grey.lanewise(VectorOperators.LSHL, 16)
+					.or(grey.lanewise(VectorOperators.LSHL, 8))
+					.or(grey)
+					.or(0xFF000000)
+					.intoArray(row, x);
+		}
+
+		for (; x < to; ++x) {
+			int rgb = row[x];
+			int red = r * ((rgb >> 16) & 0xFF);
+			int green = g * ((rgb >> 8) & 0xFF);
+			int blue = b * (rgb & 0xFF);
+
+			int greyColor = (red + green + blue) / weightSum;
+			row[x] = 0xFF000000 | greyColor << 16 | greyColor << 8 | greyColor;
+		}
+	}
+
+	private static IntVector channel(IntVector rgb, int shift) {
+		return rgb.lanewise(VectorOperators.LSHR, shift).and(0xFF);
+	}
+
+	// The precision of the reciprocals: n * reciprocal(d) stays below 2^31 for any n <= 255 * d.
+	private static final int RECIPROCAL_BITS = 22;
+
+	// ceil(2^RECIPROCAL_BITS / divisor)
+	private static int reciprocal(int divisor) {
+		return ((1 << RECIPROCAL_BITS) + divisor - 1) / divisor;
+	}
+
+	/*
+	 * n / divisor for 0 <= n <= 255 * divisor. The rounded-up reciprocal overshoots n / divisor
+	 * by less than n / 2^RECIPROCAL_BITS < 1, so the product is either the quotient or
+	 * one more; a negative remainder, whose (remainder >> 31) is -1, takes the one back.
+	 */
+	private static IntVector divide(IntVector n, int divisor, int reciprocal) {
+		IntVector q = n.mul(reciprocal).lanewise(VectorOperators.LSHR, RECIPROCAL_BITS);
+		IntVector remainder = n.sub(q.mul(divisor));
+		return q.add(remainder.lanewise(VectorOperators.ASHR, 31));
+	}
+}